@@ -0,0 +1,186 @@
+package io.github.chaogeoop.base.business.common;
+
+import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.mongodb.MongoPersistEntity;
+import io.github.chaogeoop.base.business.mongodb.PersistProvider;
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//本地聚合计数增量,每个窗口内同一个CountBizDate只产生一条CommonCountPersistHistory
+//add和insertPersistHistory一样返回PersistEntity,和业务数据一起持久化,缓存阶段才并入窗口,回滚时减掉
+//窗口内未刷出的增量只存在于本机内存,进程崩溃会丢失,对计数精度要求严格的业务不要使用
+//正常关闭时shutdown会刷出窗口,关闭后的add退回成insertPersistHistory
+@Slf4j
+public class CommonCountAggregator {
+    private final CommonCountProvider commonCountProvider;
+    private final PersistProvider persistProvider;
+    private final int maxKeys;
+    private final ScheduledExecutorService scheduler;
+
+    private final ConcurrentHashMap<CommonCountProvider.CountBizDate, Long> bizDateIncMap = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    public CommonCountAggregator(
+            CommonCountProvider commonCountProvider,
+            PersistProvider persistProvider,
+            int maxKeys,
+            Duration flushInterval
+    ) {
+        if (maxKeys < 1) {
+            throw new BizException(String.format("maxKeys cant lt 1: %s", maxKeys));
+        }
+
+        this.commonCountProvider = commonCountProvider;
+        this.persistProvider = persistProvider;
+        this.maxKeys = maxKeys;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "common-count-aggregator");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long intervalMillis = flushInterval.toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public MongoPersistEntity.PersistEntity add(Map<CommonCountProvider.CountBizDate, Long> bizDateIncMap) {
+        if (this.closed) {
+            return this.commonCountProvider.insertPersistHistory(bizDateIncMap);
+        }
+
+        Map<CommonCountProvider.CountBizDate, Long> incMap = new HashMap<>(bizDateIncMap);
+
+        MongoPersistEntity.PersistEntity persistEntity = new MongoPersistEntity.PersistEntity();
+        persistEntity.getCacheList().add(new MongoPersistEntity.CacheInterface() {
+            @Override
+            public void persist() {
+                merge(incMap);
+            }
+
+            @Override
+            public void rollback() {
+                unmerge(incMap);
+            }
+        });
+
+        return persistEntity;
+    }
+
+    public MongoPersistEntity.PersistEntity addNow(Map<CommonCountProvider.CountBiz, Long> bizIncMap) {
+        return this.add(CommonCountProvider.convertToBizDateIncMapNow(bizIncMap));
+    }
+
+    private void merge(Map<CommonCountProvider.CountBizDate, Long> incMap) {
+        for (Map.Entry<CommonCountProvider.CountBizDate, Long> entry : incMap.entrySet()) {
+            this.bizDateIncMap.merge(entry.getKey(), entry.getValue(), Long::sum);
+        }
+
+        //合并时shutdown的最后一次flush可能已经结束,由自己刷出
+        if (this.closed) {
+            this.flush();
+            return;
+        }
+
+        if (this.bizDateIncMap.size() >= this.maxKeys && this.flushScheduled.compareAndSet(false, true)) {
+            try {
+                this.scheduler.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                this.flush();
+            }
+        }
+    }
+
+    //已经被刷出的增量由下个窗口的负数抵消
+    private void unmerge(Map<CommonCountProvider.CountBizDate, Long> incMap) {
+        for (Map.Entry<CommonCountProvider.CountBizDate, Long> entry : incMap.entrySet()) {
+            this.bizDateIncMap.merge(entry.getKey(), -entry.getValue(), (a, b) -> a + b == 0 ? null : a + b);
+        }
+
+        if (this.closed) {
+            this.flush();
+        }
+    }
+
+    public synchronized void flush() {
+        this.flushScheduled.set(false);
+
+        if (this.bizDateIncMap.isEmpty()) {
+            return;
+        }
+
+        //remove和merge在ConcurrentHashMap的同一个桶锁内完成,增量要么进入本窗口,要么进入下个窗口
+        Map<CommonCountProvider.CountBizDate, Long> window = new HashMap<>();
+        for (CommonCountProvider.CountBizDate bizDate : new ArrayList<>(this.bizDateIncMap.keySet())) {
+            Long inc = this.bizDateIncMap.remove(bizDate);
+            if (inc != null) {
+                window.put(bizDate, inc);
+            }
+        }
+
+        if (window.isEmpty()) {
+            return;
+        }
+
+        MongoPersistEntity.PersistEntity persistEntity = this.commonCountProvider.insertPersistHistory(window);
+
+        //history写入redis成功后才算刷出,写入失败被回滚时把增量还给下个窗口
+        AtomicBoolean stored = new AtomicBoolean(false);
+        persistEntity.getCacheList().add(new MongoPersistEntity.CacheInterface() {
+            @Override
+            public void persist() {
+                stored.set(true);
+            }
+
+            @Override
+            public void rollback() {
+                stored.set(false);
+            }
+        });
+
+        try {
+            this.persistProvider.persist(Lists.newArrayList(persistEntity));
+        } catch (Exception e) {
+            if (!stored.get()) {
+                for (Map.Entry<CommonCountProvider.CountBizDate, Long> entry : window.entrySet()) {
+                    this.bizDateIncMap.merge(entry.getKey(), entry.getValue(), Long::sum);
+                }
+            }
+
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        this.closed = true;
+        this.scheduler.shutdown();
+
+        try {
+            this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            this.flush();
+        } catch (Exception e) {
+            log.error("commonCountAggregator flush error", e);
+        }
+    }
+}
@@ -8,8 +8,10 @@ import io.github.chaogeoop.base.business.mongodb.*;
 import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
 import io.github.chaogeoop.base.business.redis.DistributedKeyProvider;
 import io.github.chaogeoop.base.business.redis.KeyEntity;
+import io.github.chaogeoop.base.business.redis.PipelineOps;
 import io.github.chaogeoop.base.business.redis.StrictRedisProvider;
 import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.common.errors.DistributedLockedException;
 import io.github.chaogeoop.base.business.redis.KeyType;
 import io.github.chaogeoop.base.business.common.helpers.CollectionHelper;
 import io.github.chaogeoop.base.business.common.helpers.DateConverter;
@@ -23,6 +25,7 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.tuple.Pair;
 import org.bson.types.ObjectId;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.annotation.Transient;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -39,6 +42,7 @@ import java.math.BigInteger;
 import java.time.Duration;
 import java.util.*;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 
 @Slf4j
@@ -50,6 +54,12 @@ public class CommonCountProvider {
     private final Class<? extends CommonCountTotal> totalDbClazz;
     private final Class<? extends CommonCountDateLog> dateLogDbClazz;
 
+    //开启后早于缓存日期的计数直接在服务端$inc,不再读改写,也不需要total锁
+    private boolean atomicInc = false;
+
+    private static final int FREEZE_LOCK_CHUNK_SIZE = 10;
+    private static final int VERSION_CONFLICT_RETRY_TIMES = 3;
+
     private static final String COMMON_COUNT_LUA = "local beforeKey = KEYS[1]  \n" +
             "local nextKey = KEYS[2]  \n" +
             "local afterAllKey = KEYS[3]  \n" +
@@ -83,6 +93,44 @@ public class CommonCountProvider {
             "redis.call(\"SETEX\", afterAllKey, timeout, tostring(total))  \n" +
             "return total";
 
+    //一次处理N组(before, next, afterAll),ARGV为每组的(nextInc, total),最后一个是timeout,返回每组的afterAllTotal
+    private static final String COMMON_COUNT_MULTI_LUA = "local timeout = tonumber(ARGV[#ARGV])  \n" +
+            "local results = {}  \n" +
+            "for i = 1, #KEYS / 3 do  \n" +
+            "    local beforeKey = KEYS[i * 3 - 2]  \n" +
+            "    local nextKey = KEYS[i * 3 - 1]  \n" +
+            "    local afterAllKey = KEYS[i * 3]  \n" +
+            "    local nextInc = tonumber(ARGV[i * 2 - 1])  \n" +
+            "    local total = tonumber(ARGV[i * 2])  \n" +
+            "    if beforeKey ~= nextKey then  \n" +
+            "        if redis.call(\"EXISTS\", beforeKey) == 1 then  \n" +
+            "            local beforeValue = tonumber(redis.call(\"GET\", beforeKey))  \n" +
+            "            if beforeValue ~= nil then  \n" +
+            "                total = total + beforeValue  \n" +
+            "            end  \n" +
+            "        end  \n" +
+            "        if nextInc > 0 then  \n" +
+            "            redis.call(\"INCRBY\", nextKey, nextInc)  \n" +
+            "            total = total + nextInc  \n" +
+            "        end  \n" +
+            "    else  \n" +
+            "        if nextInc ~= 0 then  \n" +
+            "            local afterCache = redis.call(\"INCRBY\", nextKey, nextInc) \n" +
+            "            total = total + afterCache \n" +
+            "        else  \n" +
+            "            if redis.call(\"EXISTS\", nextKey) == 1 then  \n" +
+            "                local nextValue = tonumber(redis.call(\"GET\", nextKey))  \n" +
+            "                if nextValue ~= nil then  \n" +
+            "                    total = total + nextValue  \n" +
+            "                end  \n" +
+            "            end  \n" +
+            "        end  \n" +
+            "    end  \n" +
+            "    redis.call(\"SETEX\", afterAllKey, timeout, tostring(total))  \n" +
+            "    results[i] = total  \n" +
+            "end  \n" +
+            "return results";
+
 
     public CommonCountProvider(
             PersistProvider persistProvider,
@@ -97,6 +145,13 @@ public class CommonCountProvider {
         this.countHistorySender = countHistorySender;
         this.totalDbClazz = totalDbClazz;
         this.dateLogDbClazz = dateLogDbClazz;
+
+        this.redisAbout.getStrictRedisProvider().loadScript(COMMON_COUNT_LUA, Long.class);
+        this.redisAbout.getStrictRedisProvider().loadScript(COMMON_COUNT_MULTI_LUA, List.class);
+    }
+
+    public void setAtomicInc(boolean atomicInc) {
+        this.atomicInc = atomicInc;
     }
 
     public Map<CountBiz, Long> getBizTotalMap(Set<CountBiz> bizList) {
@@ -133,18 +188,14 @@ public class CommonCountProvider {
                 o -> KeyEntity.of(redisAbout.getCountBizDateCacheKeyType(), o.giveStringKey())
         );
 
-        List<Long> cacheBizDateTotals = redisAbout.getStrictRedisProvider().multiGet(latestCacheKeys, Long.class);
+        StrictRedisProvider.LongValues cacheBizDateTotals = redisAbout.getStrictRedisProvider().multiGetLongs(latestCacheKeys);
 
         for (int i = 0; i < hasTotalBizDateList.size(); i++) {
             CountBizDate bizDate = hasTotalBizDateList.get(i);
-            Long bizDateCacheTotal = cacheBizDateTotals.get(i);
-            if (bizDateCacheTotal == null) {
-                bizDateCacheTotal = 0L;
-            }
 
             CountBiz biz = bizDate.extractBiz();
 
-            long bizTotal = bizDateCacheTotal;
+            long bizTotal = cacheBizDateTotals.get(i);
 
             CommonCountTotal log = bizCountTotalMap.get(biz);
             if (log != null) {
@@ -212,16 +263,15 @@ public class CommonCountProvider {
                     needReadCacheBizDateList,
                     o -> KeyEntity.of(redisAbout.getCountBizDateCacheKeyType(), o.giveStringKey())
             );
-            List<Long> values = redisAbout.getStrictRedisProvider().multiGet(needReadCacheKeys, Long.class);
+            StrictRedisProvider.LongValues values = redisAbout.getStrictRedisProvider().multiGetLongs(needReadCacheKeys);
             for (int i = 0; i < needReadCacheBizDateList.size(); i++) {
                 CountBizDate bizDate = needReadCacheBizDateList.get(i);
-                Long value = values.get(i);
-                if (value == null) {
+                if (!values.isPresent(i)) {
                     continue;
                 }
 
                 CommonCountDateLog dateLog = CommonCountDateLog.of(dateLogDbClazz, bizDate);
-                dateLog.setTotal(value);
+                dateLog.setTotal(values.get(i));
 
                 dateLogs.add(dateLog);
             }
@@ -307,6 +357,7 @@ public class CommonCountProvider {
                     this.persistProvider.persist(Lists.newArrayList(persistEntity));
                 }
 
+                Map<KeyEntity<KeyType>, Map<CountBiz, Long>> lockBizIncMap = new LinkedHashMap<>();
                 Map<CountLock, List<CommonCountTotal>> group = CountLock.group((List<CommonCountTotal>) distributeSafeLogs);
                 for (Map.Entry<CountLock, List<CommonCountTotal>> entry : group.entrySet()) {
                     Map<CountBiz, Long> bizIncMap = new HashMap<>();
@@ -318,25 +369,69 @@ public class CommonCountProvider {
                     if (keyType == null) {
                         continue;
                     }
-                    KeyEntity<KeyType> lock = KeyEntity.of(keyType, entry.getKey().getLockId());
+                    lockBizIncMap.put(KeyEntity.of(keyType, entry.getKey().getLockId()), bizIncMap);
+                }
+
+                this.freezeDistributeSafeData(lockBizIncMap);
+            }
+        }
+    }
 
+    //一页内的锁按小块一起加,每块持有锁的时间只覆盖这一块的持久化,不会长时间挡住业务写入
+    //块内有锁被占用时退回逐个加锁,避免一个热点锁拖住整块
+    private void freezeDistributeSafeData(Map<KeyEntity<KeyType>, Map<CountBiz, Long>> lockBizIncMap) {
+        List<KeyEntity<KeyType>> locks = Lists.newArrayList(lockBizIncMap.keySet());
+
+        for (List<KeyEntity<KeyType>> chunk : Lists.partition(locks, FREEZE_LOCK_CHUNK_SIZE)) {
+            this.freezeDistributeSafeDataChunk(chunk, lockBizIncMap);
+        }
+    }
+
+    private void freezeDistributeSafeDataChunk(List<KeyEntity<KeyType>> chunk, Map<KeyEntity<KeyType>, Map<CountBiz, Long>> lockBizIncMap) {
+        try {
+            this.redisAbout.getStrictRedisProvider().exeFuncWithLocks(chunk, o -> {
+                for (KeyEntity<KeyType> lock : chunk) {
                     try {
-                        this.redisAbout.getStrictRedisProvider().exeFuncWithLock(lock, o -> {
-                            Pair<MongoPersistEntity.PersistEntity, Map<CountBiz, CountBizEntity>> pair = this.distributeSafeMultiBizCount(bizIncMap, new Date(), lock);
-                            this.persistProvider.persist(Lists.newArrayList(pair.getLeft()));
-                            return null;
-                        });
+                        this.freezeDistributeSafeData(lock, lockBizIncMap.get(lock));
                     } catch (Exception e) {
                         log.error("freezeColdData error", e);
                     }
                 }
+                return null;
+            });
+
+            return;
+        } catch (DistributedLockedException e) {
+            log.info("freezeColdData chunk lock busy, fallback to single lock: {}", chunk.size());
+        } catch (Exception e) {
+            log.error("freezeColdData error", e);
+            return;
+        }
+
+        for (KeyEntity<KeyType> lock : chunk) {
+            try {
+                this.redisAbout.getStrictRedisProvider().exeFuncWithLock(lock, o -> {
+                    this.freezeDistributeSafeData(lock, lockBizIncMap.get(lock));
+                    return null;
+                });
+            } catch (Exception e) {
+                log.error("freezeColdData error", e);
             }
         }
     }
 
+    private void freezeDistributeSafeData(KeyEntity<KeyType> lock, Map<CountBiz, Long> bizIncMap) {
+        Pair<MongoPersistEntity.PersistEntity, Map<CountBiz, CountBizEntity>> pair = this.distributeSafeMultiBizCount(bizIncMap, new Date(), lock);
+        this.persistProvider.persist(Lists.newArrayList(pair.getLeft()));
+    }
+
     public MongoPersistEntity.PersistEntity insertPersistHistoryNow(
             Map<CountBiz, Long> bizIncMap
     ) {
+        return this.insertPersistHistory(convertToBizDateIncMapNow(bizIncMap));
+    }
+
+    static Map<CountBizDate, Long> convertToBizDateIncMapNow(Map<CountBiz, Long> bizIncMap) {
         String date = DateConverter.dateToString(DateConverter.plusDurationOfDate(new Date(), Duration.ofSeconds(-10)), DateConverter.DateFormatEnum.fullUntilDay);
 
         Map<CountBizDate, Long> bizDateIncMap = new HashMap<>();
@@ -344,7 +439,7 @@ public class CommonCountProvider {
             bizDateIncMap.put(entry.getKey().convertToBizDate(date), entry.getValue());
         }
 
-        return this.insertPersistHistory(bizDateIncMap);
+        return bizDateIncMap;
     }
 
     public MongoPersistEntity.PersistEntity insertPersistHistory(Map<CountBizDate, Long> bizDateIncMap) {
@@ -395,8 +490,208 @@ public class CommonCountProvider {
             return;
         }
 
-        for (String id : ids) {
-            this.countHistorySender.apply(Lists.newArrayList(id));
+        this.persistCountByHistoryIds(ids);
+    }
+
+    public void persistCountByHistoryIds(List<String> ids) {
+        Map<String, CommonCountPersistHistory> idHistoryMap = this.findHistoryMap(CollectionHelper.unique(ids));
+        if (idHistoryMap.isEmpty()) {
+            return;
+        }
+
+        Map<CountBiz, List<String>> bizIdsMap = CollectionHelper.groupBy(
+                idHistoryMap.keySet(), o -> idHistoryMap.get(o).extractBizDate().extractBiz()
+        );
+
+        //单个biz失败不影响其它biz,优先抛出锁异常让消息重新入队,已处理的history不会被重复处理
+        RuntimeException error = null;
+        for (Map.Entry<CountBiz, List<String>> entry : bizIdsMap.entrySet()) {
+            try {
+                this.persistCountByBizHistoryIds(entry.getKey(), entry.getValue(), idHistoryMap);
+            } catch (RuntimeException e) {
+                log.error("persistCountByHistoryIds error: {}", entry.getKey().giveStringKey(), e);
+
+                if (error == null || e instanceof DistributedLockedException) {
+                    error = e;
+                }
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void persistCountByBizHistoryIds(CountBiz biz, List<String> ids, Map<String, CommonCountPersistHistory> readHistoryMap) {
+        List<String> sortedIds = Lists.newArrayList(ids);
+        Collections.sort(sortedIds);
+
+        //创建total要加total锁,锁不可重入,加锁前先确保total存在,锁里只会重新读取
+        CountBizDate latestBizDate = null;
+        for (String id : sortedIds) {
+            CountBizDate bizDate = readHistoryMap.get(id).extractBizDate();
+            if (latestBizDate == null || DateConverter.parseStringDate(bizDate.getDate(), DateConverter.DateFormatEnum.fullUntilDay).after(
+                    DateConverter.parseStringDate(latestBizDate.getDate(), DateConverter.DateFormatEnum.fullUntilDay)
+            )) {
+                latestBizDate = bizDate;
+            }
+        }
+        this.giveCommonCountTotalResource(latestBizDate).getDefault(this.redisAbout.getStrictRedisProvider(), o -> null);
+
+        //history锁和biz的total锁一次加上
+        List<KeyEntity<? extends KeyType>> locks = new ArrayList<>();
+        for (String id : sortedIds) {
+            locks.add(KeyEntity.of(this.redisAbout.getCommonCountPersistHistoryLockType(), id));
+        }
+        locks.add(KeyEntity.of(this.redisAbout.getCommonCountTotalCreateLockType(), biz.giveStringKey()));
+
+        this.redisAbout.getStrictRedisProvider().exeFuncWithLocks(locks, o -> this.retryOnVersionConflict(biz, () -> {
+            //加锁后重新读取,已被其它消费者处理的history不再处理
+            Map<String, CommonCountPersistHistory> idHistoryMap = this.findHistoryMap(sortedIds);
+            if (idHistoryMap.isEmpty()) {
+                return null;
+            }
+
+            Map<CountBizDate, Long> bizDateIncMap = new HashMap<>();
+            for (CommonCountPersistHistory history : idHistoryMap.values()) {
+                bizDateIncMap.merge(history.extractBizDate(), history.getTotal(), Long::sum);
+            }
+
+            //最大的日期先处理,之后其它日期都不晚于缓存日期,只需要加到dateLog和total上,所有日期共享total合并成一次持久化
+            List<CountBizDate> bizDates = Lists.newArrayList(bizDateIncMap.keySet());
+            bizDates.sort(Comparator.comparing(
+                    (CountBizDate date) -> DateConverter.parseStringDate(date.getDate(), DateConverter.DateFormatEnum.fullUntilDay)
+            ).reversed());
+
+            MongoPersistEntity.PersistEntity persistEntity = new MongoPersistEntity.PersistEntity();
+            Map<CountBizDate, CommonCountDateLog> dateLogMap = new HashMap<>();
+            Map<KeyEntity<? extends KeyType>, Long> deleteRollbackMap = new HashMap<>();
+
+            List<CountBizEntity> countBizEntityList = new ArrayList<>();
+            for (CountBizDate bizDate : bizDates) {
+                CountBizEntity countBizEntity;
+                if (countBizEntityList.isEmpty()) {
+                    countBizEntity = new CountBizEntity(bizDate, bizDateIncMap.get(bizDate));
+                } else {
+                    countBizEntity = new CountBizEntity(bizDate, bizDateIncMap.get(bizDate), countBizEntityList.get(0).commonCountTotal);
+                }
+                countBizEntityList.add(countBizEntity);
+
+                this.collectCountBizEntity(countBizEntity, persistEntity, dateLogMap, deleteRollbackMap);
+            }
+
+            persistEntity.getCacheList().add(this.getDeleteRollbackCache(deleteRollbackMap, idHistoryMap));
+
+            this.persistProvider.persist(Lists.newArrayList(persistEntity));
+
+            //和逐个日期持久化时一样,只有早于原缓存日期的计数才补一次当天的计数
+            Date originLatestCacheDate = DateConverter.parseStringDate(
+                    countBizEntityList.get(0).beforeLatestCacheDate, DateConverter.DateFormatEnum.fullUntilDay
+            );
+            for (CountBizEntity countBizEntity : countBizEntityList) {
+                Date date = DateConverter.parseStringDate(countBizEntity.bizDate.getDate(), DateConverter.DateFormatEnum.fullUntilDay);
+                if (date.before(originLatestCacheDate) && countBizEntity.inc > 0) {
+                    MongoPersistEntity.PersistEntity ensureAfterAllTotalEntity = this.insertPersistHistoryNow(Map.of(biz, 0L));
+
+                    this.persistProvider.persist(Lists.newArrayList(ensureAfterAllTotalEntity));
+                    break;
+                }
+            }
+
+            return null;
+        }));
+    }
+
+    private DefaultResourceInterface<CommonCountTotal> giveCommonCountTotalResource(CountBizDate bizDate) {
+        CountBiz biz = bizDate.extractBiz();
+        String collectionName = EnhanceBaseModelManager.getAccordCollectionNameByData(this.mongoTemplate, CommonCountTotal.splitKeyOf(this.totalDbClazz, biz));
+
+        return new DefaultResourceInterface<>() {
+            @Override
+            public KeyEntity<? extends KeyType> getLock() {
+                return KeyEntity.of(
+                        redisAbout.getCommonCountTotalCreateLockType(),
+                        biz.giveStringKey()
+                );
+            }
+
+            @Override
+            public CommonCountTotal findExist() {
+                Query query = new Query();
+
+                query.addCriteria(Criteria.where("t").is(biz.getTypeId()));
+                query.addCriteria(Criteria.where("b").is(biz.getBizType()));
+                query.addCriteria(Criteria.where("s").is(biz.getSubBizType()));
+
+                return mongoTemplate.findOne(query, totalDbClazz, collectionName);
+            }
+
+            @Override
+            public CommonCountTotal createWhenNotExist() {
+                CommonCountTotal data = CommonCountTotal.of(totalDbClazz, bizDate, redisAbout);
+
+                return mongoTemplate.insert(data, collectionName);
+            }
+        };
+    }
+
+    //atomicInc的$inc不持有total锁,会让total和dateLog的版本前进,持有锁的读改写遇到乐观锁冲突时重新读取再试
+    //失败的持久化整体回滚了,重试前删掉total缓存,避免再读到旧版本
+    private <T> T retryOnVersionConflict(CountBiz biz, Supplier<T> func) {
+        for (int i = 1; ; i++) {
+            try {
+                return func.get();
+            } catch (OptimisticLockingFailureException e) {
+                if (i >= VERSION_CONFLICT_RETRY_TIMES) {
+                    throw e;
+                }
+
+                log.info("commonCount version conflict, retry {}: {}", i, biz.giveStringKey());
+                this.redisAbout.getStrictRedisProvider().delete(KeyEntity.of(this.redisAbout.getCommonCountTotalCacheKeyType(), biz.giveStringKey()));
+            }
+        }
+    }
+
+    private Map<String, CommonCountPersistHistory> findHistoryMap(List<String> ids) {
+        Map<String, CommonCountPersistHistory> map = new HashMap<>();
+        if (ids.isEmpty()) {
+            return map;
+        }
+
+        List<CommonCountPersistHistory> histories = this.redisAbout.getStrictRedisProvider().hmget(
+                this.redisAbout.getCountHistoryHashKey(), ids, CommonCountPersistHistory.class
+        );
+
+        for (int i = 0; i < ids.size(); i++) {
+            CommonCountPersistHistory history = histories.get(i);
+            if (history != null) {
+                map.put(ids.get(i), history);
+            }
+        }
+
+        return map;
+    }
+
+    private void persistCountBizEntity(CountBizEntity countBizEntity, Map<String, CommonCountPersistHistory> idHistoryMap) {
+        MongoPersistEntity.PersistEntity persistEntity = new MongoPersistEntity.PersistEntity();
+        Map<KeyEntity<? extends KeyType>, Long> deleteRollbackMap = new HashMap<>();
+
+        this.collectCountBizEntity(countBizEntity, persistEntity, new HashMap<>(), deleteRollbackMap);
+
+        persistEntity.getCacheList().add(this.getDeleteRollbackCache(deleteRollbackMap, idHistoryMap));
+
+        this.persistProvider.persist(Lists.newArrayList(persistEntity));
+    }
+
+    //多个日期要删除的缓存key合并起来,同一个key保留第一次读到的值用于回滚
+    private void collectCountBizEntity(
+            CountBizEntity countBizEntity, MongoPersistEntity.PersistEntity persistEntity,
+            Map<CountBizDate, CommonCountDateLog> dateLogMap, Map<KeyEntity<? extends KeyType>, Long> deleteRollbackMap
+    ) {
+        countBizEntity.initCacheAbout();
+        countBizEntity.setCommonCountDateLog(dateLogMap);
+        for (Map.Entry<KeyEntity<? extends KeyType>, Long> entry : countBizEntity.collectNeedPersist(persistEntity).entrySet()) {
+            deleteRollbackMap.putIfAbsent(entry.getKey(), entry.getValue());
         }
     }
 
@@ -424,55 +719,23 @@ public class CommonCountProvider {
             CountBiz biz = bizDate.extractBiz();
 
             CountBizEntity countBizEntity = new CountBizEntity(bizDate, o.getTotal());
-            MongoPersistEntity.PersistEntity persistEntity = new MongoPersistEntity.PersistEntity();
 
-
-            MongoPersistEntity.CacheInterface deleteHistoryCache = new MongoPersistEntity.CacheInterface() {
-                @Override
-                public void persist() {
-                    redisAbout.getStrictRedisProvider().hdel(redisAbout.getCountHistoryHashKey(), Sets.newHashSet(id));
-                }
-
-                @Override
-                public void rollback() {
-                    redisAbout.getStrictRedisProvider().hmset(redisAbout.getCountHistoryHashKey(), Map.of(id, o.toRedisAccept()));
-                }
-            };
+            Map<String, CommonCountPersistHistory> idHistoryMap = Map.of(id, o);
 
             if (!countBizEntity.needLock) {
-                countBizEntity.initCacheAbout();
-                countBizEntity.setCommonCountDateLog();
-                Map<KeyEntity<? extends KeyType>, Long> deleteRollbackMap = countBizEntity.collectNeedPersist(persistEntity);
-                MongoPersistEntity.CacheInterface deleteRollbackCache = this.getDeleteRollbackCache(deleteRollbackMap);
-                if (deleteRollbackCache != null) {
-                    persistEntity.getCacheList().add(deleteRollbackCache);
-                }
-
-                persistEntity.getCacheList().add(deleteHistoryCache);
-
-                this.persistProvider.persist(Lists.newArrayList(persistEntity));
+                this.persistCountBizEntity(countBizEntity, idHistoryMap);
 
                 return null;
             }
 
             this.redisAbout.getStrictRedisProvider().exeFuncWithLock(
                     KeyEntity.of(this.redisAbout.getCommonCountTotalCreateLockType(), biz.giveStringKey()),
-                    M -> {
+                    M -> this.retryOnVersionConflict(biz, () -> {
                         countBizEntity.setCommonCountTotal();
-                        countBizEntity.initCacheAbout();
-                        countBizEntity.setCommonCountDateLog();
-                        Map<KeyEntity<? extends KeyType>, Long> deleteRollbackMap = countBizEntity.collectNeedPersist(persistEntity);
-                        MongoPersistEntity.CacheInterface deleteRollbackCache = this.getDeleteRollbackCache(deleteRollbackMap);
-                        if (deleteRollbackCache != null) {
-                            persistEntity.getCacheList().add(deleteRollbackCache);
-                        }
-
-                        persistEntity.getCacheList().add(deleteHistoryCache);
-
-                        this.persistProvider.persist(Lists.newArrayList(persistEntity));
+                        this.persistCountBizEntity(countBizEntity, idHistoryMap);
 
                         return null;
-                    }
+                    })
             );
 
             if (CacheStateEnum.NO_CACHE.equals(countBizEntity.cacheState) && countBizEntity.inc > 0) {
@@ -521,9 +784,8 @@ public class CommonCountProvider {
 
         MultiCountBizEntity multiCountBizEntity = new MultiCountBizEntity(countBizEntityList);
         Map<KeyEntity<? extends KeyType>, Long> deleteRollbackMap = multiCountBizEntity.collectNeedPersist(persistEntity);
-        MongoPersistEntity.CacheInterface deleteRollbackCache = getDeleteRollbackCache(deleteRollbackMap);
-        if (deleteRollbackCache != null) {
-            persistEntity.getCacheList().add(deleteRollbackCache);
+        if (!deleteRollbackMap.isEmpty()) {
+            persistEntity.getCacheList().add(this.getDeleteRollbackCache(deleteRollbackMap, new HashMap<>()));
         }
 
         Map<CountBiz, CountBizEntity> bizCountEntityMap = CollectionHelper.toMap(countBizEntityList, o -> o.biz);
@@ -531,30 +793,42 @@ public class CommonCountProvider {
         return Pair.of(persistEntity, bizCountEntityMap);
     }
 
-    @Nullable
-    private MongoPersistEntity.CacheInterface getDeleteRollbackCache(Map<KeyEntity<? extends KeyType>, Long> map) {
-        if (map.isEmpty()) {
-            return null;
-        }
-
-        Map<KeyEntity<? extends KeyType>, StrictRedisProvider.AcceptType> rollbackMap = new HashMap<>();
-        for (Map.Entry<KeyEntity<? extends KeyType>, Long> entry : map.entrySet()) {
-            if (entry.getValue() != null) {
-                rollbackMap.put(entry.getKey(), StrictRedisProvider.AcceptType.of(entry.getValue()));
-            }
-        }
+    //删除计数缓存和已处理的history在一次pipeline里完成,回滚时同样一次写回
+    private MongoPersistEntity.CacheInterface getDeleteRollbackCache(
+            Map<KeyEntity<? extends KeyType>, Long> map, Map<String, CommonCountPersistHistory> idHistoryMap
+    ) {
+        KeyEntity<? extends KeyType> historyHashKey = this.redisAbout.getCountHistoryHashKey();
 
         return new MongoPersistEntity.CacheInterface() {
             @Override
             public void persist() {
-                redisAbout.getStrictRedisProvider().delete(map.keySet());
+                redisAbout.getStrictRedisProvider().pipeline(ops -> {
+                    for (KeyEntity<? extends KeyType> keyEntity : map.keySet()) {
+                        ops.delete(keyEntity);
+                    }
+                    if (!idHistoryMap.isEmpty()) {
+                        ops.hdel(historyHashKey, idHistoryMap.keySet());
+                    }
+                });
             }
 
             @Override
             public void rollback() {
-                if (!rollbackMap.isEmpty()) {
-                    redisAbout.getStrictRedisProvider().multiSet(rollbackMap);
-                }
+                redisAbout.getStrictRedisProvider().pipeline(ops -> {
+                    for (Map.Entry<KeyEntity<? extends KeyType>, Long> entry : map.entrySet()) {
+                        if (entry.getValue() != null) {
+                            ops.set(entry.getKey(), StrictRedisProvider.AcceptType.of(entry.getValue()), null);
+                        }
+                    }
+
+                    if (!idHistoryMap.isEmpty()) {
+                        Map<String, StrictRedisProvider.AcceptType> historyMap = new HashMap<>();
+                        for (Map.Entry<String, CommonCountPersistHistory> entry : idHistoryMap.entrySet()) {
+                            historyMap.put(entry.getKey(), entry.getValue().toRedisAccept());
+                        }
+                        ops.hmset(historyHashKey, historyMap);
+                    }
+                });
             }
         };
     }
@@ -573,13 +847,59 @@ public class CommonCountProvider {
             Map<KeyEntity<? extends KeyType>, Long> result = new HashMap<>();
 
             for (CountBizEntity countBizEntity : this.countBizEntityList) {
-                Map<KeyEntity<? extends KeyType>, Long> tmp = countBizEntity.collectNeedPersist(persistEntity);
+                Map<KeyEntity<? extends KeyType>, Long> tmp = countBizEntity.collectNeedPersist(persistEntity, false);
                 result.putAll(tmp);
             }
 
+            persistEntity.getCacheList().add(this.getMultiIncCache());
+
             return result;
         }
 
+        private MongoPersistEntity.CacheInterface getMultiIncCache() {
+            return new MongoPersistEntity.CacheInterface() {
+                @Override
+                public void persist() {
+                    incAndCacheAfterAllMultiLua();
+                }
+
+                @Override
+                public void rollback() {
+                    redisAbout.getStrictRedisProvider().pipeline(ops -> {
+                        for (CountBizEntity countBizEntity : countBizEntityList) {
+                            countBizEntity.appendIncRollback(ops);
+                        }
+                    });
+                }
+            };
+        }
+
+        private void incAndCacheAfterAllMultiLua() {
+            if (this.countBizEntityList.isEmpty()) {
+                return;
+            }
+
+            DefaultRedisScript<List> redisScript = redisAbout.getStrictRedisProvider().loadScript(COMMON_COUNT_MULTI_LUA, List.class);
+
+            int size = this.countBizEntityList.size();
+            List<KeyEntity<? extends KeyType>> keyEntities = new ArrayList<>(size * 3);
+            Object[] values = new Long[size * 2 + 1];
+            for (int i = 0; i < size; i++) {
+                CountBizEntity countBizEntity = this.countBizEntityList.get(i);
+
+                keyEntities.addAll(countBizEntity.giveIncKeyEntities());
+                values[i * 2] = countBizEntity.getNextCacheInc();
+                values[i * 2 + 1] = countBizEntity.getDbTotal();
+            }
+            values[size * 2] = redisAbout.getAfterAllTotalCacheDuration().toSeconds();
+
+            List<Object> totals = redisAbout.getStrictRedisProvider().executeLua(redisScript, keyEntities, values);
+
+            for (int i = 0; i < size; i++) {
+                this.countBizEntityList.get(i).afterAllTotal = ((Number) totals.get(i)).longValue();
+            }
+        }
+
         private void finishCacheAbout() {
             List<CountBizDate> needReadBeforeLatestCacheTotalBizDates = new ArrayList<>();
             Map<CountBiz, Long> bizBeforeLatestCacheTotalMap = new HashMap<>();
@@ -599,16 +919,12 @@ public class CommonCountProvider {
                             redisAbout.getCountBizDateCacheKeyType(),
                             o.giveStringKey()
                     ));
-            List<Long> cacheList = redisAbout.getStrictRedisProvider().multiGet(keyList, Long.class);
+            StrictRedisProvider.LongValues cacheList = redisAbout.getStrictRedisProvider().multiGetLongs(keyList);
 
             for (int i = 0; i < needReadBeforeLatestCacheTotalBizDates.size(); i++) {
                 CountBizDate bizDate = needReadBeforeLatestCacheTotalBizDates.get(i);
-                Long value = cacheList.get(i);
-                if (value == null) {
-                    value = 0L;
-                }
 
-                bizBeforeLatestCacheTotalMap.put(bizDate.extractBiz(), value);
+                bizBeforeLatestCacheTotalMap.put(bizDate.extractBiz(), cacheList.get(i));
             }
 
             for (CountBizEntity countBizEntity : this.countBizEntityList) {
@@ -640,21 +956,25 @@ public class CommonCountProvider {
             );
 
             List<CommonCountDateLog> logs = new ArrayList<>();
-            for (Map.Entry<String, List<CountBizDate>> entry : collectionNameBizDateList.entrySet()) {
-                List<Criteria> orList = new ArrayList<>();
-                for (CountBizDate bizDate : entry.getValue()) {
-                    orList.add(Criteria.where("t").is(bizDate.getTypeId())
-                            .and("b").is(bizDate.getBizType())
-                            .and("s").is(bizDate.getSubBizType())
-                            .and("d").is(bizDate.getDate())
-                    );
-                }
+            //atomicInc时不需要已有记录,直接upsert
+            if (!atomicInc) {
+                for (Map.Entry<String, List<CountBizDate>> entry : collectionNameBizDateList.entrySet()) {
+                    List<Criteria> orList = new ArrayList<>();
+                    for (CountBizDate bizDate : entry.getValue()) {
+                        orList.add(Criteria.where("t").is(bizDate.getTypeId())
+                                .and("b").is(bizDate.getBizType())
+                                .and("s").is(bizDate.getSubBizType())
+                                .and("d").is(bizDate.getDate())
+                        );
+                    }
 
-                Query query = new Query();
-                query.addCriteria(new Criteria().orOperator(orList.toArray(new Criteria[0])));
+                    Query query = new Query();
+                    query.addCriteria(new Criteria().orOperator(orList.toArray(new Criteria[0])));
 
-                logs.addAll(mongoTemplate.find(query, dateLogDbClazz, entry.getKey()));
+                    logs.addAll(mongoTemplate.find(query, dateLogDbClazz, entry.getKey()));
+                }
             }
+
             Map<CountBizDate, CommonCountDateLog> existBizDateCommonCountDateLogMap = CollectionHelper.toMap(logs, CommonCountDateLog::extractBizDate);
 
             for (CountBizDate bizDate : needCommonCountDateLogBizDates) {
@@ -716,6 +1036,21 @@ public class CommonCountProvider {
             if (!this.needLock) {
                 this.needLock = !Objects.equal(this.bizDate.getDate(), this.currentDate);
             }
+
+            //缓存日期只会前进,早于缓存日期的计数不会变成其它状态,$inc不需要锁
+            if (this.needLock && atomicInc && CacheStateEnum.NO_CACHE.equals(this.calCacheState())) {
+                this.needLock = false;
+            }
+        }
+
+        //同一个biz的多个日期合并持久化时共用第一个日期读到的total
+        private CountBizEntity(CountBizDate bizDate, long inc, CommonCountTotal countTotal) {
+            this.isDistributeSafe = false;
+            this.bizDate = bizDate;
+            this.biz = this.bizDate.extractBiz();
+            this.inc = inc;
+            this.currentDate = DateConverter.dateToString(new Date(), DateConverter.DateFormatEnum.fullUntilDay);
+            this.commonCountTotal = countTotal;
         }
 
         private CountBizEntity(CommonCountTotal countTotal, Date occurTime, long inc) {
@@ -738,11 +1073,18 @@ public class CommonCountProvider {
         }
 
         private Map<KeyEntity<? extends KeyType>, Long> collectNeedPersist(MongoPersistEntity.PersistEntity persistEntity) {
+            return this.collectNeedPersist(persistEntity, true);
+        }
+
+        //withIncCache为false时由MultiCountBizEntity统一执行缓存脚本
+        private Map<KeyEntity<? extends KeyType>, Long> collectNeedPersist(MongoPersistEntity.PersistEntity persistEntity, boolean withIncCache) {
             Map<KeyEntity<? extends KeyType>, Long> deleteRollbackMap = new HashMap<>();
 
             this.beforeDbTotal = this.commonCountTotal.getTotal();
 
-            persistEntity.getCacheList().add(this.getIncCache());
+            if (withIncCache) {
+                persistEntity.getCacheList().add(this.getIncCache());
+            }
 
             if (CacheStateEnum.STAY.equals(this.cacheState)) {
                 return deleteRollbackMap;
@@ -750,6 +1092,13 @@ public class CommonCountProvider {
 
             Date changeDate = DateConverter.parseStringDate(this.commonCountDateLog.getDate(), DateConverter.DateFormatEnum.fullUntilDay);
             String changeMonth = DateConverter.dateToString(changeDate, DateConverter.DateFormatEnum.fullUntilMonth);
+
+            if (atomicInc && CacheStateEnum.NO_CACHE.equals(this.cacheState)) {
+                this.collectAtomicIncPersist(persistEntity, changeMonth, deleteRollbackMap);
+
+                return deleteRollbackMap;
+            }
+
             this.commonCountTotal.getChangeMonths().add(changeMonth);
 
             if (this.commonCountDateLog.getId() == null) {
@@ -796,6 +1145,39 @@ public class CommonCountProvider {
             return deleteRollbackMap;
         }
 
+        private void collectAtomicIncPersist(
+                MongoPersistEntity.PersistEntity persistEntity, String changeMonth, Map<KeyEntity<? extends KeyType>, Long> deleteRollbackMap
+        ) {
+            Map<String, Object> dateLogKeyMap = new LinkedHashMap<>();
+            dateLogKeyMap.put("t", this.commonCountDateLog.getTypeId());
+            dateLogKeyMap.put("b", this.commonCountDateLog.getBizType());
+            dateLogKeyMap.put("s", this.commonCountDateLog.getSubBizType());
+            dateLogKeyMap.put("d", this.commonCountDateLog.getDate());
+
+            persistEntity.getDatabase().inc(MongoPersistEntity.IncEntity.of(
+                    this.commonCountDateLog, dateLogKeyMap, Map.of("total", this.inc), true
+            ));
+
+            if (this.inc == 0) {
+                return;
+            }
+
+            Map<String, Object> totalKeyMap = new LinkedHashMap<>();
+            totalKeyMap.put("t", this.commonCountTotal.getTypeId());
+            totalKeyMap.put("b", this.commonCountTotal.getBizType());
+            totalKeyMap.put("s", this.commonCountTotal.getSubBizType());
+
+            MongoPersistEntity.IncEntity totalInc = MongoPersistEntity.IncEntity.of(
+                    this.commonCountTotal, totalKeyMap, Map.of("total", this.inc), false
+            );
+            totalInc.getAddToSetMap().put("changeMonths", changeMonth);
+            persistEntity.getDatabase().inc(totalInc);
+
+            deleteRollbackMap.put(KeyEntity.of(redisAbout.getCommonCountTotalCacheKeyType(), biz.giveStringKey()), null);
+            //没有锁时读到的total可能已经过时,afterAll缓存删掉后读取时重新计算
+            deleteRollbackMap.put(KeyEntity.of(redisAbout.getCountBizAfterAllTotalCacheKeyType(), biz.giveStringKey()), null);
+        }
+
         private MongoPersistEntity.CacheInterface getIncCache() {
             return new MongoPersistEntity.CacheInterface() {
                 @Override
@@ -805,28 +1187,36 @@ public class CommonCountProvider {
 
                 @Override
                 public void rollback() {
-                    KeyEntity<? extends KeyType> keyEntity = KeyEntity.of(
-                            redisAbout.getCountBizDateCacheKeyType(),
-                            biz.convertToBizDate(nextCacheDate).giveStringKey()
-                    );
+                    redisAbout.getStrictRedisProvider().pipeline(ops -> appendIncRollback(ops));
+                }
+            };
+        }
 
-                    long nextInc = getNextCacheInc();
-                    if (nextInc != 0) {
-                        redisAbout.getStrictRedisProvider().incrBy(keyEntity, nextInc * -1);
+        private void appendIncRollback(PipelineOps ops) {
+            KeyEntity<? extends KeyType> keyEntity = KeyEntity.of(
+                    redisAbout.getCountBizDateCacheKeyType(),
+                    biz.convertToBizDate(nextCacheDate).giveStringKey()
+            );
 
-                        afterAllTotal -= nextInc;
-                    }
+            long nextInc = this.getNextCacheInc();
+            if (nextInc != 0) {
+                ops.incrBy(keyEntity, nextInc * -1);
 
-                    redisAbout.getStrictRedisProvider().delete(
-                            KeyEntity.of(redisAbout.getCountBizAfterAllTotalCacheKeyType(), biz.giveStringKey())
-                    );
-                }
-            };
+                this.afterAllTotal -= nextInc;
+            }
+
+            ops.delete(KeyEntity.of(redisAbout.getCountBizAfterAllTotalCacheKeyType(), biz.giveStringKey()));
         }
 
         private Long incAndCacheAfterAllLua() {
-            DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(COMMON_COUNT_LUA, Long.class);
+            DefaultRedisScript<Long> redisScript = redisAbout.getStrictRedisProvider().loadScript(COMMON_COUNT_LUA, Long.class);
+
+            Object[] values = new Long[]{this.getNextCacheInc(), this.getDbTotal(), redisAbout.getAfterAllTotalCacheDuration().toSeconds()};
+
+            return redisAbout.getStrictRedisProvider().executeLua(redisScript, this.giveIncKeyEntities(), values);
+        }
 
+        private List<KeyEntity<? extends KeyType>> giveIncKeyEntities() {
             KeyEntity<? extends KeyType> beforeKeyEntity = KeyEntity.of(
                     redisAbout.getCountBizDateCacheKeyType(),
                     biz.convertToBizDate(beforeLatestCacheDate).giveStringKey()
@@ -842,9 +1232,7 @@ public class CommonCountProvider {
                     biz.giveStringKey()
             );
 
-            Object[] values = new Long[]{this.getNextCacheInc(), this.getDbTotal(), redisAbout.getAfterAllTotalCacheDuration().toSeconds()};
-
-            return redisAbout.getStrictRedisProvider().executeLua(redisScript, Lists.newArrayList(beforeKeyEntity, nextKeyEntity, afterAllKeyEntity), values);
+            return Lists.newArrayList(beforeKeyEntity, nextKeyEntity, afterAllKeyEntity);
         }
 
         private long getDbTotal() {
@@ -877,37 +1265,7 @@ public class CommonCountProvider {
                 return;
             }
 
-            String collectionName = EnhanceBaseModelManager.getAccordCollectionNameByData(mongoTemplate, CommonCountTotal.splitKeyOf(totalDbClazz, this.biz));
-
-            DefaultResourceInterface<CommonCountTotal> entity = new DefaultResourceInterface<>() {
-                @Override
-                public KeyEntity<? extends KeyType> getLock() {
-                    return KeyEntity.of(
-                            redisAbout.getCommonCountTotalCreateLockType(),
-                            biz.giveStringKey()
-                    );
-                }
-
-                @Override
-                public CommonCountTotal findExist() {
-                    Query query = new Query();
-
-                    query.addCriteria(Criteria.where("t").is(biz.getTypeId()));
-                    query.addCriteria(Criteria.where("b").is(biz.getBizType()));
-                    query.addCriteria(Criteria.where("s").is(biz.getSubBizType()));
-
-                    return mongoTemplate.findOne(query, totalDbClazz, collectionName);
-                }
-
-                @Override
-                public CommonCountTotal createWhenNotExist() {
-                    CommonCountTotal data = CommonCountTotal.of(totalDbClazz, bizDate, redisAbout);
-
-                    return mongoTemplate.insert(data, collectionName);
-                }
-            };
-
-            this.commonCountTotal = entity.getDefault(redisAbout.getStrictRedisProvider(), o -> {
+            this.commonCountTotal = giveCommonCountTotalResource(this.bizDate).getDefault(redisAbout.getStrictRedisProvider(), o -> {
                 boolean needUpdate = o.checkNeedUpdateCache(cache);
 
                 if (needUpdate) {
@@ -998,7 +1356,8 @@ public class CommonCountProvider {
             this.beforeLatestCacheTotal = value;
         }
 
-        private void setCommonCountDateLog() {
+        //同一次持久化里同一天共用一个dateLog,避免重复insert
+        private void setCommonCountDateLog(Map<CountBizDate, CommonCountDateLog> dateLogMap) {
             if (this.isDistributeSafe) {
                 throw new BizException("distributeSafe cant use this func");
             }
@@ -1007,6 +1366,24 @@ public class CommonCountProvider {
                 return;
             }
 
+            CountBizDate logBizDate = CacheStateEnum.NO_CACHE.equals(this.cacheState) ?
+                    this.bizDate : this.biz.convertToBizDate(this.beforeLatestCacheDate);
+
+            CommonCountDateLog shared = dateLogMap.get(logBizDate);
+            if (shared == null) {
+                this.setCommonCountDateLog();
+                dateLogMap.put(logBizDate, this.commonCountDateLog);
+            } else {
+                this.commonCountDateLog = shared;
+            }
+        }
+
+        private void setCommonCountDateLog() {
+            if (CacheStateEnum.NO_CACHE.equals(this.cacheState) && atomicInc) {
+                this.commonCountDateLog = CommonCountDateLog.of(dateLogDbClazz, this.bizDate);
+                return;
+            }
+
             if (CacheStateEnum.NO_CACHE.equals(this.cacheState)) {
                 String collectionName = EnhanceBaseModelManager.getAccordCollectionNameByData(mongoTemplate, CommonCountDateLog.splitKeyOf(dateLogDbClazz, this.bizDate));
 
@@ -1168,7 +1545,7 @@ public class CommonCountProvider {
             @CompoundIndex(name = "typeId_bizType_subBizType", def = "{'t':1, 'b':1, 's': 1}", unique = true),
             @CompoundIndex(name = "scope_latestCacheStamp_dataIsCold", def = "{'sc':1, 'st':1, 'c':1}")
     })
-    public static class CommonCountTotal extends BaseModel implements ISplitCollection {
+    public static class CommonCountTotal extends BaseModel implements ISplitCollection, IDirtyTracking {
         @Field(value = "t")
         private String typeId;
 
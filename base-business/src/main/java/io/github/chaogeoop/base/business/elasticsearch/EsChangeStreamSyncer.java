@@ -0,0 +1,469 @@
+package io.github.chaogeoop.base.business.elasticsearch;
+
+import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.common.helpers.SleepHelper;
+import io.github.chaogeoop.base.business.mongodb.SplitCollectionHelper;
+import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import io.searchbox.client.JestClient;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+//可选的es同步方式: 监听ISearch集合(包含所有_split_分表)的change stream,合并后批量写入es
+//事务内不再写SyncLog也不经过消息队列,resume token保存在mongo,重启后从断点继续,至少同步一次
+@Slf4j
+public class EsChangeStreamSyncer {
+    private static final String CHECKPOINT_COLLECTION_NAME = "es_change_stream_checkpoint";
+    private static final int MAX_BULK_RETRY = 3;
+    //ChangeStreamHistoryLost、ChangeStreamFatalError、InvalidResumeToken: 断点已经不在oplog里,用它重试永远不会成功
+    private static final Set<Integer> HISTORY_LOST_CODES = Set.of(286, 280, 260);
+
+    private final MongoTemplate mongoTemplate;
+    private final List<Class<? extends BaseModel>> searchClazzList;
+    private final String name;
+    private final BulkIndexer bulkIndexer;
+
+    private int batchSize = 500;
+    private Duration batchInterval = Duration.ofSeconds(1);
+
+    //不为空时把收到的事件交给它,记录下来的事件可以用replay离线回放
+    @Nullable
+    private Consumer<ChangeEvent> recorder;
+
+    //断点丢失后从当前时间重新监听,中间的变更需要由它触发全量同步补上
+    @Nullable
+    private Runnable historyLostHandler;
+
+    private final Map<String, EsHelper.EsUnitInfo> collectionUnitMap = new ConcurrentHashMap<>();
+    private final Map<String, PendingOp> pendingMap = new LinkedHashMap<>();
+    @Nullable
+    private String pendingResumeToken;
+    @Nullable
+    private String savedResumeToken;
+    private long lastFlushAt = System.currentTimeMillis();
+
+    private final LongAdder eventCount = new LongAdder();
+    private final LongAdder indexedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder historyLostCount = new LongAdder();
+
+    private volatile boolean running = false;
+    @Nullable
+    private Thread thread;
+
+    public EsChangeStreamSyncer(
+            MongoTemplate mongoTemplate, List<Class<? extends BaseModel>> searchClazzList, String name, BulkIndexer bulkIndexer
+    ) {
+        for (Class<? extends BaseModel> clazz : searchClazzList) {
+            if (!ISearch.class.isAssignableFrom(clazz)) {
+                throw new BizException(String.format("不是ISearch: %s", clazz.getName()));
+            }
+        }
+
+        this.mongoTemplate = mongoTemplate;
+        this.searchClazzList = searchClazzList;
+        this.name = name;
+        this.bulkIndexer = bulkIndexer;
+    }
+
+    public static BulkIndexer jestIndexer(JestClient jestClient) {
+        return (esUnitInfo, idDataMap, deleteIds) -> {
+            String realEsName = BaseEsHelper.getAccordEsNameByData(
+                    jestClient, esUnitInfo.getBaseEsName(), esUnitInfo.getEsName(), esUnitInfo.getMapping()
+            );
+
+            return SimpleSearchHelper.bulkData(jestClient, realEsName, idDataMap, deleteIds);
+        };
+    }
+
+    public void setBatch(int batchSize, Duration batchInterval) {
+        this.batchSize = batchSize;
+        this.batchInterval = batchInterval;
+    }
+
+    public void setRecorder(@Nullable Consumer<ChangeEvent> recorder) {
+        this.recorder = recorder;
+    }
+
+    public void setHistoryLostHandler(@Nullable Runnable historyLostHandler) {
+        this.historyLostHandler = historyLostHandler;
+    }
+
+    public boolean support(Class<?> clazz) {
+        return this.searchClazzList.contains(clazz);
+    }
+
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+
+        this.running = true;
+        this.thread = new Thread(this::run, String.format("es-change-stream-%s", this.name));
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public synchronized void stop() {
+        this.running = false;
+
+        if (this.thread != null) {
+            try {
+                this.thread.join(Duration.ofSeconds(10).toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.thread = null;
+        }
+    }
+
+    //离线回放记录的事件,不读写checkpoint;和监听共用待写入的事件,监听运行时不能回放
+    public synchronized void replay(Iterable<ChangeEvent> events) {
+        if (this.running) {
+            throw new BizException(String.format("es change stream正在运行,不能回放: %s", this.name));
+        }
+
+        for (ChangeEvent event : events) {
+            this.process(event);
+
+            if (this.pendingMap.size() >= this.batchSize) {
+                this.flush(null);
+            }
+        }
+
+        this.flush(null);
+    }
+
+    public long getEventCount() {
+        return this.eventCount.sum();
+    }
+
+    public long getIndexedCount() {
+        return this.indexedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return this.failedCount.sum();
+    }
+
+    public long getHistoryLostCount() {
+        return this.historyLostCount.sum();
+    }
+
+    private void run() {
+        while (this.running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = this.openCursor()) {
+                while (this.running) {
+                    ChangeStreamDocument<Document> document = cursor.tryNext();
+                    if (document != null) {
+                        this.process(ChangeEvent.of(document));
+                    }
+
+                    if (this.pendingMap.size() >= this.batchSize ||
+                            System.currentTimeMillis() - this.lastFlushAt >= this.batchInterval.toMillis()) {
+                        this.flush(this.giveCheckpointToken(cursor));
+                    }
+                }
+
+                this.flush(this.giveCheckpointToken(cursor));
+            } catch (Exception e) {
+                //丢弃未写入的事件,从上一个checkpoint重新读取
+                this.pendingMap.clear();
+                this.pendingResumeToken = null;
+
+                if (isHistoryLost(e)) {
+                    this.handleHistoryLost(e);
+                    continue;
+                }
+
+                log.error("es change stream error: {}", this.name, e);
+
+                SleepHelper.sleep(Duration.ofSeconds(1));
+            }
+        }
+    }
+
+    //cursor的token在没有匹配事件时也会随oplog前进,空闲时保存它,冷门集合的断点才不会滑出oplog窗口
+    @Nullable
+    private String giveCheckpointToken(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor) {
+        BsonDocument token = cursor.getResumeToken();
+        if (token != null) {
+            return token.toJson();
+        }
+
+        return this.pendingResumeToken;
+    }
+
+    private static boolean isHistoryLost(Exception e) {
+        return e instanceof MongoServerException && HISTORY_LOST_CODES.contains(((MongoServerException) e).getCode());
+    }
+
+    //删掉断点从当前时间重新监听,丢失的变更交给historyLostHandler全量同步
+    private void handleHistoryLost(Exception e) {
+        log.error("es change stream history lost, restart from now: {}", this.name, e);
+        this.historyLostCount.increment();
+
+        this.mongoTemplate.remove(new Query(Criteria.where("_id").is(this.name)), CHECKPOINT_COLLECTION_NAME);
+        this.savedResumeToken = null;
+
+        if (this.historyLostHandler != null) {
+            try {
+                this.historyLostHandler.run();
+            } catch (Exception handleError) {
+                log.error("es change stream history lost handler error: {}", this.name, handleError);
+            }
+        }
+    }
+
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openCursor() {
+        String pattern = this.searchClazzList.stream()
+                .map(o -> Pattern.quote(BaseModel.getBaseCollectionNameByClazz(o)))
+                .collect(Collectors.joining("|"));
+
+        List<Bson> pipeline = Collections.singletonList(Aggregates.match(Filters.and(
+                Filters.regex("ns.coll", String.format("^(%s)(_split_.*)?$", pattern)),
+                Filters.in("operationType", "insert", "update", "replace", "delete")
+        )));
+
+        BsonDocument resumeToken = this.loadCheckpoint();
+
+        if (resumeToken == null) {
+            return this.mongoTemplate.getDb().watch(pipeline).fullDocument(FullDocument.UPDATE_LOOKUP).cursor();
+        }
+
+        return this.mongoTemplate.getDb().watch(pipeline).fullDocument(FullDocument.UPDATE_LOOKUP).resumeAfter(resumeToken).cursor();
+    }
+
+    private void process(ChangeEvent event) {
+        this.eventCount.increment();
+
+        if (this.recorder != null) {
+            this.recorder.accept(event);
+        }
+
+        this.pendingResumeToken = event.getResumeToken();
+
+        Class<? extends BaseModel> clazz = this.findClazz(event.getCollectionName());
+        if (clazz == null) {
+            return;
+        }
+
+        EsHelper.EsUnitInfo esUnitInfo = this.collectionUnitMap.computeIfAbsent(
+                event.getCollectionName(),
+                o -> EsHelper.EsUnitInfo.of((Class<? extends ISearch<? extends IBaseEs>>) clazz, SplitCollectionHelper.calSplitIndex(o))
+        );
+
+        //与EsProvider.handle生成的uniqueId一致
+        String uniqueId = event.getCollectionName().toLowerCase() + "_" + new BigInteger(event.getId(), 16).toString(16);
+        String pendingKey = String.format("%s/%s", esUnitInfo.getEsName(), uniqueId);
+
+        if (EsProvider.ActionEnum.DELETE.name().equalsIgnoreCase(event.getOperationType())) {
+            this.pendingMap.remove(pendingKey);
+            this.pendingMap.put(pendingKey, PendingOp.of(esUnitInfo, uniqueId, null));
+            return;
+        }
+
+        //update_lookup时文档已被删除,等待之后的删除事件
+        if (event.getFullDocument() == null) {
+            return;
+        }
+
+        BaseModel model = this.mongoTemplate.getConverter().read(clazz, Document.parse(event.getFullDocument()));
+        String esJson = ((ISearch<?>) model).giveEsJson();
+        if (esJson == null) {
+            return;
+        }
+
+        this.pendingMap.remove(pendingKey);
+        this.pendingMap.put(pendingKey, PendingOp.of(esUnitInfo, uniqueId, esJson));
+    }
+
+    //有文档重试后仍然失败时抛出,不保存checkpoint,从上一个checkpoint重新读取后再写
+    //checkpointToken为空时不保存checkpoint
+    private void flush(@Nullable String checkpointToken) {
+        this.lastFlushAt = System.currentTimeMillis();
+
+        Collection<PendingOp> ops = new ArrayList<>(this.pendingMap.values());
+        this.pendingMap.clear();
+        this.pendingResumeToken = null;
+
+        Map<EsHelper.EsUnitInfo, List<PendingOp>> unitOpsMap = new HashMap<>();
+        for (PendingOp op : ops) {
+            unitOpsMap.computeIfAbsent(op.getEsUnitInfo(), k -> new ArrayList<>()).add(op);
+        }
+
+        int failedSize = 0;
+        for (Map.Entry<EsHelper.EsUnitInfo, List<PendingOp>> entry : unitOpsMap.entrySet()) {
+            Map<String, String> idDataMap = new HashMap<>();
+            Set<String> deleteIds = new HashSet<>();
+            for (PendingOp op : entry.getValue()) {
+                if (op.getData() == null) {
+                    deleteIds.add(op.getUniqueId());
+                } else {
+                    idDataMap.put(op.getUniqueId(), op.getData());
+                }
+            }
+
+            Map<String, String> failedMap = this.bulkWithRetry(entry.getKey(), idDataMap, deleteIds);
+            for (Map.Entry<String, String> failed : failedMap.entrySet()) {
+                log.error("es change stream sync failed: {}, {}, {}", entry.getKey().getEsName(), failed.getKey(), failed.getValue());
+            }
+
+            failedSize += failedMap.size();
+            this.failedCount.add(failedMap.size());
+            this.indexedCount.add(entry.getValue().size() - failedMap.size());
+        }
+
+        if (failedSize > 0) {
+            throw new BizException(String.format("es change stream sync failed: %s, %s", this.name, failedSize));
+        }
+
+        if (checkpointToken != null && !checkpointToken.equals(this.savedResumeToken)) {
+            this.saveCheckpoint(checkpointToken);
+            this.savedResumeToken = checkpointToken;
+        }
+    }
+
+    //只重试失败的文档,整个请求失败时直接抛出
+    private Map<String, String> bulkWithRetry(EsHelper.EsUnitInfo esUnitInfo, Map<String, String> idDataMap, Set<String> deleteIds) {
+        Map<String, String> failedMap = this.bulkIndexer.bulk(esUnitInfo, idDataMap, deleteIds);
+
+        for (int attempt = 1; attempt <= MAX_BULK_RETRY && !failedMap.isEmpty(); attempt++) {
+            SleepHelper.sleep(Duration.ofMillis(100L * attempt));
+
+            Map<String, String> retryDataMap = new HashMap<>();
+            Set<String> retryDeleteIds = new HashSet<>();
+            for (String id : failedMap.keySet()) {
+                if (idDataMap.containsKey(id)) {
+                    retryDataMap.put(id, idDataMap.get(id));
+                } else if (deleteIds.contains(id)) {
+                    retryDeleteIds.add(id);
+                }
+            }
+
+            failedMap = this.bulkIndexer.bulk(esUnitInfo, retryDataMap, retryDeleteIds);
+        }
+
+        return failedMap;
+    }
+
+    @Nullable
+    private Class<? extends BaseModel> findClazz(String collectionName) {
+        for (Class<? extends BaseModel> clazz : this.searchClazzList) {
+            if (SplitCollectionHelper.isClazzRelativeCollection(collectionName, clazz)) {
+                return clazz;
+            }
+        }
+
+        return null;
+    }
+
+    @Nullable
+    private BsonDocument loadCheckpoint() {
+        Document checkpoint = this.mongoTemplate.findOne(
+                new Query(Criteria.where("_id").is(this.name)), Document.class, CHECKPOINT_COLLECTION_NAME
+        );
+        if (checkpoint == null || checkpoint.getString("token") == null) {
+            return null;
+        }
+
+        return BsonDocument.parse(checkpoint.getString("token"));
+    }
+
+    private void saveCheckpoint(String resumeToken) {
+        Update update = new Update();
+        update.set("token", resumeToken);
+        update.set("updatedAt", new Date());
+
+        this.mongoTemplate.upsert(new Query(Criteria.where("_id").is(this.name)), update, CHECKPOINT_COLLECTION_NAME);
+    }
+
+    public interface BulkIndexer {
+        //返回失败的文档id和原因,整个请求失败时抛出异常
+        Map<String, String> bulk(EsHelper.EsUnitInfo esUnitInfo, Map<String, String> idDataMap, Set<String> deleteIds);
+    }
+
+    //与mongo driver解耦并可以序列化,方便记录和回放
+    @Setter
+    @Getter
+    public static class ChangeEvent {
+        private String operationType;
+
+        private String collectionName;
+
+        //_id的16进制
+        private String id;
+
+        //extended json,删除事件为空
+        @Nullable
+        private String fullDocument;
+
+        private String resumeToken;
+
+        public static ChangeEvent of(ChangeStreamDocument<Document> document) {
+            ChangeEvent data = new ChangeEvent();
+
+            data.setOperationType(document.getOperationType().getValue());
+            data.setCollectionName(document.getNamespace().getCollectionName());
+            data.setId(convertId(document.getDocumentKey().get("_id")));
+            data.setFullDocument(document.getFullDocument() == null ? null : document.getFullDocument().toJson());
+            data.setResumeToken(document.getResumeToken().toJson());
+
+            return data;
+        }
+
+        private static String convertId(BsonValue id) {
+            if (id.isObjectId()) {
+                return id.asObjectId().getValue().toHexString();
+            }
+
+            throw new BizException(String.format("不支持的_id类型: %s", id.getBsonType()));
+        }
+    }
+
+    @Setter
+    @Getter
+    private static class PendingOp {
+        private EsHelper.EsUnitInfo esUnitInfo;
+
+        private String uniqueId;
+
+        //为空表示删除
+        @Nullable
+        private String data;
+
+        public static PendingOp of(EsHelper.EsUnitInfo esUnitInfo, String uniqueId, @Nullable String data) {
+            PendingOp op = new PendingOp();
+
+            op.setEsUnitInfo(esUnitInfo);
+            op.setUniqueId(uniqueId);
+            op.setData(data);
+
+            return op;
+        }
+    }
+}
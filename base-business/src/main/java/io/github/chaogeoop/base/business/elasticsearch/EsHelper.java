@@ -9,6 +9,8 @@ import io.github.chaogeoop.base.business.common.errors.BizException;
 import io.github.chaogeoop.base.business.common.helpers.JsonHelper;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
 import io.searchbox.client.JestClient;
 import lombok.Getter;
@@ -23,7 +25,9 @@ import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
 import javax.annotation.Nullable;
+import java.io.Writer;
 import java.lang.reflect.Field;
+import java.nio.CharBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -348,6 +352,35 @@ public class EsHelper {
     }
 
     public static String convertToJson(Class<? extends IBaseEs> clazz, IBaseEs data) {
+        ObjectMapper mapper = getSerializer(clazz);
+
+        try {
+            return mapper.writeValueAsString(data);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //序列化输出的同时计算hash,不用再对完整json做一次遍历
+    public static EsJson convertToJsonWithHash(Class<? extends IBaseEs> clazz, IBaseEs data) {
+        ObjectMapper mapper = getSerializer(clazz);
+
+        HashingWriter writer = new HashingWriter();
+        try {
+            mapper.writeValue(writer, data);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        return EsJson.of(writer.toString(), writer.hash());
+    }
+
+    //与convertToJsonWithHash的结果一致,用于没有保存hash的旧数据
+    public static String hashJson(String json) {
+        return Hashing.murmur3_128().hashUnencodedChars(json).toString();
+    }
+
+    private static ObjectMapper getSerializer(Class<? extends IBaseEs> clazz) {
         ObjectMapper mapper = esSerializerMap.get(clazz);
         if (mapper == null) {
             EsClazzEntity entity = new EsClazzEntity(clazz);
@@ -355,11 +388,7 @@ public class EsHelper {
             mapper = esSerializerMap.get(clazz);
         }
 
-        try {
-            return mapper.writeValueAsString(data);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return mapper;
     }
 
     private static EsFieldInfo getEsFieldInfoIntern(Class<? extends IBaseEs> clazz) {
@@ -789,19 +818,12 @@ public class EsHelper {
         }
 
         private String calAccordEsName() {
-            Class<? extends IBaseEs> esClazz = this.data.giveEsModel();
-
-            if (esClazz.isAnnotationPresent(EsTableName.class)) {
-                return esClazz.getAnnotation(EsTableName.class).value();
-            }
-
-            if (!(this.data instanceof ISplitCollection)) {
-                return this.baseEsName;
+            String splitIndex = null;
+            if (this.data instanceof ISplitCollection) {
+                splitIndex = ((ISplitCollection) this.data).calSplitIndex();
             }
 
-            String splitIndex = ((ISplitCollection) this.data).calSplitIndex();
-
-            return SplitCollectionHelper.combineNameWithSplitIndex(this.baseEsName, splitIndex);
+            return EsHelper.calAccordEsName(this.baseEsName, this.data.giveEsModel(), splitIndex);
         }
 
         private String getMapping(JestClient jestClient) {
@@ -828,6 +850,18 @@ public class EsHelper {
         }
     }
 
+    private static String calAccordEsName(String baseEsName, Class<? extends IBaseEs> esClazz, @Nullable String splitIndex) {
+        if (esClazz.isAnnotationPresent(EsTableName.class)) {
+            return esClazz.getAnnotation(EsTableName.class).value();
+        }
+
+        if (splitIndex == null) {
+            return baseEsName;
+        }
+
+        return SplitCollectionHelper.combineNameWithSplitIndex(baseEsName, splitIndex);
+    }
+
     private static String getBaseEsName(Class<? extends ISearch<? extends IBaseEs>> clazz) {
         Class<? extends IBaseEs> esClazz = getBaseEsClazz(clazz);
 
@@ -857,6 +891,19 @@ public class EsHelper {
             return entity.getInfo(jestClient);
         }
 
+        //只根据类和分表序号计算,不需要数据也不访问es,用于只有集合名的场景(如删除事件)
+        public static EsUnitInfo of(Class<? extends ISearch<? extends IBaseEs>> clazz, @Nullable String splitIndex) {
+            InitEsUnit initEsUnit = InitEsUnit.of(clazz);
+
+            EsUnitInfo info = new EsUnitInfo();
+
+            info.setBaseEsName(initEsUnit.getBaseEsName());
+            info.setEsName(EsHelper.calAccordEsName(initEsUnit.getBaseEsName(), initEsUnit.getEsClazz(), splitIndex));
+            info.setMapping(initEsUnit.getMapping());
+
+            return info;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -871,6 +918,58 @@ public class EsHelper {
         }
     }
 
+    @Setter
+    @Getter
+    public static class EsJson {
+        private String json;
+
+        //json的murmur3_128
+        private String hash;
+
+        public static EsJson of(String json, String hash) {
+            EsJson data = new EsJson();
+
+            data.setJson(json);
+            data.setHash(hash);
+
+            return data;
+        }
+    }
+
+    private static class HashingWriter extends Writer {
+        private final StringBuilder builder = new StringBuilder();
+        private final Hasher hasher = Hashing.murmur3_128().newHasher();
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            this.builder.append(cbuf, off, len);
+            this.hasher.putUnencodedChars(CharBuffer.wrap(cbuf, off, len));
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            this.builder.append(str, off, off + len);
+            this.hasher.putUnencodedChars(str.subSequence(off, off + len));
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        public String hash() {
+            return this.hasher.hash().toString();
+        }
+
+        @Override
+        public String toString() {
+            return this.builder.toString();
+        }
+    }
+
     @Setter
     @Getter
     public static class InitEsUnit {
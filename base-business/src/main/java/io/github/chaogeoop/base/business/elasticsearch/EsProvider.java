@@ -8,6 +8,7 @@ import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
 import io.github.chaogeoop.base.business.redis.KeyEntity;
 import io.github.chaogeoop.base.business.redis.StrictRedisProvider;
 import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.common.errors.DistributedLockedException;
 import io.github.chaogeoop.base.business.redis.KeyType;
 import io.github.chaogeoop.base.business.common.entities.ListPage;
 import io.github.chaogeoop.base.business.common.helpers.CollectionHelper;
@@ -16,14 +17,18 @@ import com.google.common.collect.Sets;
 import io.searchbox.client.JestClient;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.util.MultiValueMap;
 
 import javax.annotation.Nullable;
@@ -33,6 +38,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
+@Slf4j
 public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
     private final MongoTemplate mongoTemplate;
     private final RedisAbout<?> redisAbout;
@@ -40,8 +46,23 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
     private final JestClient jestClient;
     private final Class<? extends SyncLog> logDbClazz;
 
+    @Nullable
+    private volatile EsChangeStreamSyncer changeStreamSyncer;
+
     public static final ConcurrentHashMap<MongoTemplate, JestClient> databaseEsMap = new ConcurrentHashMap<>();
 
+    private static final Duration IN_FLIGHT_TIMEOUT = Duration.ofMinutes(10);
+
+    private static final String MULTI_SET_NX_PX = "local result = {}  \n" +
+            "for i, key in ipairs(KEYS) do  \n" +
+            "    if redis.call(\"SET\", key, \"1\", \"NX\", \"PX\", ARGV[1]) then  \n" +
+            "        result[i] = 1  \n" +
+            "    else  \n" +
+            "        result[i] = 0  \n" +
+            "    end  \n" +
+            "end  \n" +
+            "return result";
+
 
     public EsProvider(
             MongoTemplate mongoTemplate,
@@ -69,6 +90,55 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
         return this.jestClient;
     }
 
+    //开启后这些类由change stream同步到es,事务内不再写SyncLog,也不发送同步消息
+    public synchronized EsChangeStreamSyncer startChangeStreamSync(List<Class<? extends BaseModel>> searchClazzList, String name) {
+        if (this.changeStreamSyncer != null) {
+            throw new BizException("change stream同步已开启");
+        }
+
+        EsChangeStreamSyncer syncer = new EsChangeStreamSyncer(
+                this.mongoTemplate, searchClazzList, name, EsChangeStreamSyncer.jestIndexer(this.jestClient)
+        );
+        syncer.start();
+
+        this.changeStreamSyncer = syncer;
+
+        return syncer;
+    }
+
+    public synchronized void stopChangeStreamSync() {
+        if (this.changeStreamSyncer == null) {
+            return;
+        }
+
+        this.changeStreamSyncer.stop();
+        this.changeStreamSyncer = null;
+    }
+
+    //有需要同步的ISearch模型时handle会写SyncLog
+    @Override
+    public boolean writeDatabase(MongoPersistEntity.PersistMap persistMap) {
+        List<MultiValueMap<MongoPersistEntity.ModelClazzCollectionName, BaseModel>> maps = Lists.newArrayList(
+                persistMap.getInsertMap(), persistMap.getSaveMap(), persistMap.getDeleteMap()
+        );
+
+        for (MultiValueMap<MongoPersistEntity.ModelClazzCollectionName, BaseModel> map : maps) {
+            for (Map.Entry<MongoPersistEntity.ModelClazzCollectionName, List<BaseModel>> entry : map.entrySet()) {
+                if (!ISearch.class.isAssignableFrom(entry.getKey().getModelClazz())) {
+                    continue;
+                }
+                if (this.changeStreamSyncer != null && this.changeStreamSyncer.support(entry.getKey().getModelClazz())) {
+                    continue;
+                }
+                if (!entry.getValue().isEmpty()) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     @Override
     public void handle(MongoPersistEntity.PersistMap persistMap) {
         if (this.mongoTemplate != persistMap.getMongoTemplate()) {
@@ -89,6 +159,9 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
                 if (!ISearch.class.isAssignableFrom(entry.getKey().getModelClazz())) {
                     continue;
                 }
+                if (this.changeStreamSyncer != null && this.changeStreamSyncer.support(entry.getKey().getModelClazz())) {
+                    continue;
+                }
                 if (entry.getValue().isEmpty()) {
                     continue;
                 }
@@ -97,7 +170,7 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
                 esUnitInfoSet.add(esUnitInfo);
 
                 for (BaseModel obj : entry.getValue()) {
-                    String esJson = ((ISearch<?>) obj).giveEsJson();
+                    EsHelper.EsJson esJson = ((ISearch<?>) obj).giveEsJsonWithHash();
                     if (esJson == null) {
                         continue;
                     }
@@ -115,7 +188,8 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
                     log.setUniqueId(entry.getKey().getCollectionName().toLowerCase() + "_" + obj.getId().toString(16));
                     log.setVersion(obj.getV());
                     log.setAction(actionEntry.getKey());
-                    log.setData(esJson);
+                    log.setData(esJson.getJson());
+                    log.setDataHash(esJson.getHash());
                     log.setScope(this.redisAbout.getStrictRedisProvider().getDistributedKeyProvider().getScope());
 
                     logs.add(log);
@@ -127,8 +201,15 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
             return;
         }
 
-        List<SyncLog> results = (List<SyncLog>) this.mongoTemplate.insert(logs, this.logDbClazz);
-        List<EsNameId> list = CollectionHelper.map(results, EsNameId::of);
+        boolean coalesce = this.redisAbout.getEsSyncInFlightType() != null;
+
+        List<EsNameId> list;
+        if (coalesce) {
+            list = this.upsertLogs(logs);
+        } else {
+            List<SyncLog> results = (List<SyncLog>) this.mongoTemplate.insert(logs, this.logDbClazz);
+            list = CollectionHelper.map(results, EsNameId::of);
+        }
 
         MongoPersistEntity.MessageInterface message = new MongoPersistEntity.MessageInterface() {
             @Override
@@ -137,13 +218,85 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
                     BaseEsHelper.getAccordEsNameByData(jestClient, esUnit.getBaseEsName(), esUnit.getEsName(), esUnit.getMapping());
                 }
 
-                esSyncSender.apply(list);
+                List<EsNameId> needSendList = coalesce ? markInFlight(list) : list;
+                if (needSendList.isEmpty()) {
+                    return;
+                }
+
+                esSyncSender.apply(needSendList);
             }
         };
 
         persistMap.getMessages().add(message);
     }
 
+    //合并模式: 同一个文档未处理的SyncLog原地更新为最高版本,不再每次变更插入一条
+    private List<EsNameId> upsertLogs(List<SyncLog> logs) {
+        Map<String, SyncLog> latestLogMap = new LinkedHashMap<>();
+        for (SyncLog log : logs) {
+            SyncLog exist = latestLogMap.get(log.calTypeId());
+            if (exist == null || log.getVersion() >= exist.getVersion()) {
+                latestLogMap.put(log.calTypeId(), log);
+            }
+        }
+
+        BulkOperations bulkOps = this.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, this.logDbClazz);
+        for (SyncLog log : latestLogMap.values()) {
+            Query query = new Query();
+            query.addCriteria(Criteria.where("esName").is(log.getEsName()));
+            query.addCriteria(Criteria.where("uniqueId").is(log.getUniqueId()));
+            query.addCriteria(Criteria.where("version").lte(log.getVersion()));
+
+            Update update = new Update();
+            update.set("baseEsName", log.getBaseEsName());
+            update.set("mapping", log.getMapping());
+            update.set("version", log.getVersion());
+            update.set("action", log.getAction());
+            update.set("data", log.getData());
+            update.set("dataHash", log.getDataHash());
+            update.set("scope", log.getScope());
+
+            bulkOps.upsert(query, update);
+        }
+        bulkOps.execute();
+
+        return CollectionHelper.map(Lists.newArrayList(latestLogMap.values()), EsNameId::of);
+    }
+
+    //同一个文档同时只有一条消息在队列中,标记已存在的文档不再发送,由在途的消息处理最新的SyncLog
+    private List<EsNameId> markInFlight(List<EsNameId> list) {
+        List<KeyEntity<? extends KeyType>> keyEntities = new ArrayList<>();
+        for (EsNameId esNameId : list) {
+            keyEntities.add(KeyEntity.of(this.redisAbout.getEsSyncInFlightType(), esNameId.calTypeId()));
+        }
+
+        DefaultRedisScript<List> redisScript = this.redisAbout.getStrictRedisProvider().loadScript(MULTI_SET_NX_PX, List.class);
+        List<Long> results = this.redisAbout.getStrictRedisProvider().executeLua(redisScript, keyEntities, new Object[]{IN_FLIGHT_TIMEOUT.toMillis()});
+
+        List<EsNameId> needSendList = new ArrayList<>();
+        for (int i = 0; i < list.size(); i++) {
+            if (results.get(i) > 0) {
+                needSendList.add(list.get(i));
+            }
+        }
+
+        return needSendList;
+    }
+
+    //必须在读取SyncLog之前清除标记: 清除之后的写入会重新发送消息,清除之前的写入会被这次读取到
+    private void clearInFlight(Collection<EsNameId> esNameIds) {
+        if (this.redisAbout.getEsSyncInFlightType() == null) {
+            return;
+        }
+
+        Set<KeyEntity<? extends KeyType>> keyEntities = new HashSet<>();
+        for (EsNameId esNameId : esNameIds) {
+            keyEntities.add(KeyEntity.of(this.redisAbout.getEsSyncInFlightType(), esNameId.calTypeId()));
+        }
+
+        this.redisAbout.getStrictRedisProvider().delete(keyEntities);
+    }
+
     public void syncDataToEs(Set<BaseModel> list) {
         MongoPersistEntity.PersistEntity persistEntity = new MongoPersistEntity.PersistEntity();
         persistEntity.getDatabase().save(list);
@@ -164,12 +317,223 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
             return;
         }
 
+        BatchSyncResult result;
+        try {
+            result = this.batchSyncToEs(messages);
+        } catch (DistributedLockedException e) {
+            //有文档正在被其他消费者同步,退回逐条发送
+            for (EsNameId message : messages) {
+                this.esSyncSender.apply(Lists.newArrayList(message));
+            }
+            return;
+        }
+
+        //失败文档的SyncLog没有删除,逐条重新发送
+        for (FailedItem failedItem : result.getFailedItems()) {
+            log.error("batch sync to es failed: {}, {}", failedItem.getEsNameId().calTypeId(), failedItem.getReason());
+
+            this.esSyncSender.apply(Lists.newArrayList(failedItem.getEsNameId()));
+        }
+    }
+
+    //一次查询读取所有SyncLog并只保留每个文档的最新版本,每个index一次_bulk,最后一次remove删除已同步的SyncLog
+    public BatchSyncResult batchSyncToEs(List<EsNameId> messages) {
+        Map<String, EsNameId> typeIdMap = new LinkedHashMap<>();
         for (EsNameId message : messages) {
-            this.esSyncSender.apply(Lists.newArrayList(message));
+            typeIdMap.put(message.calTypeId(), message);
+        }
+
+        this.clearInFlight(typeIdMap.values());
+
+        List<KeyEntity<? extends KeyType>> locks = new ArrayList<>();
+        for (String typeId : typeIdMap.keySet()) {
+            locks.add(KeyEntity.of(this.redisAbout.getEsDataSyncLockType(), typeId));
+        }
+
+        return this.redisAbout.getStrictRedisProvider().exeFuncWithLocks(locks, o -> this.batchSyncToEs(typeIdMap));
+    }
+
+    private BatchSyncResult batchSyncToEs(Map<String, EsNameId> typeIdMap) {
+        BatchSyncResult result = new BatchSyncResult();
+
+        Map<String, SyncLog> latestLogMap = this.findLatestLogMap(typeIdMap.values());
+        if (latestLogMap.isEmpty()) {
+            return result;
+        }
+
+        Map<String, String> cacheHashMap = this.findCacheHashMap(latestLogMap);
+
+        Map<String, List<SyncLog>> esNameLogsMap = new HashMap<>();
+        for (SyncLog log : latestLogMap.values()) {
+            String realEsName = BaseEsHelper.getAccordEsNameByData(this.jestClient, log.getBaseEsName(), log.getEsName(), log.getMapping());
+            esNameLogsMap.computeIfAbsent(realEsName, k -> new ArrayList<>()).add(log);
+        }
+
+        List<SyncLog> syncedLogs = new ArrayList<>();
+        for (Map.Entry<String, List<SyncLog>> entry : esNameLogsMap.entrySet()) {
+            Map<String, SyncLog> uniqueIdLogMap = new HashMap<>();
+            Map<String, String> idDataMap = new HashMap<>();
+            Set<String> deleteIds = new HashSet<>();
+
+            for (SyncLog log : entry.getValue()) {
+                if (ActionEnum.DELETE.equals(log.getAction())) {
+                    uniqueIdLogMap.put(log.getUniqueId(), log);
+                    deleteIds.add(log.getUniqueId());
+                    continue;
+                }
+
+                if (ActionEnum.UPDATE.equals(log.getAction()) && log.giveDataHash().equals(cacheHashMap.get(log.calTypeId()))) {
+                    syncedLogs.add(log);
+                    continue;
+                }
+
+                uniqueIdLogMap.put(log.getUniqueId(), log);
+                idDataMap.put(log.getUniqueId(), log.getData());
+            }
+
+            Map<String, String> failedMap;
+            try {
+                failedMap = SimpleSearchHelper.bulkData(this.jestClient, entry.getKey(), idDataMap, deleteIds);
+            } catch (Exception e) {
+                failedMap = new HashMap<>();
+                for (String uniqueId : uniqueIdLogMap.keySet()) {
+                    failedMap.put(uniqueId, e.getMessage());
+                }
+            }
+
+            for (Map.Entry<String, SyncLog> logEntry : uniqueIdLogMap.entrySet()) {
+                SyncLog log = logEntry.getValue();
+
+                if (failedMap.containsKey(logEntry.getKey())) {
+                    result.getFailedItems().add(FailedItem.of(EsNameId.of(log), failedMap.get(logEntry.getKey())));
+                    continue;
+                }
+
+                syncedLogs.add(log);
+            }
+        }
+
+        this.refreshCache(syncedLogs);
+        this.removeSyncedLogs(syncedLogs);
+
+        result.setSyncedCount(syncedLogs.size());
+
+        return result;
+    }
+
+    private Map<String, SyncLog> findLatestLogMap(Collection<EsNameId> esNameIds) {
+        Map<String, Set<String>> esNameUniqueIdsMap = new HashMap<>();
+        for (EsNameId esNameId : esNameIds) {
+            esNameUniqueIdsMap.computeIfAbsent(esNameId.getEsName(), k -> new HashSet<>()).add(esNameId.getUniqueId());
+        }
+
+        List<Criteria> criteriaList = new ArrayList<>();
+        for (Map.Entry<String, Set<String>> entry : esNameUniqueIdsMap.entrySet()) {
+            criteriaList.add(Criteria.where("esName").is(entry.getKey()).and("uniqueId").in(entry.getValue()));
+        }
+
+        Query query = new Query();
+        query.addCriteria(new Criteria().orOperator(criteriaList.toArray(new Criteria[0])));
+
+        Map<String, SyncLog> latestLogMap = new HashMap<>();
+        for (SyncLog log : this.mongoTemplate.find(query, this.logDbClazz)) {
+            SyncLog exist = latestLogMap.get(log.calTypeId());
+            if (exist == null || isNewer(log, exist)) {
+                latestLogMap.put(log.calTypeId(), log);
+            }
         }
+
+        return latestLogMap;
+    }
+
+    //与单条同步的排序一致: version倒序,_id倒序
+    private static boolean isNewer(SyncLog log, SyncLog exist) {
+        int compare = log.getVersion().compareTo(exist.getVersion());
+        if (compare != 0) {
+            return compare > 0;
+        }
+
+        return log.getId().compareTo(exist.getId()) > 0;
+    }
+
+    //一次mget读取所有UPDATE文档上次同步的hash
+    private Map<String, String> findCacheHashMap(Map<String, SyncLog> latestLogMap) {
+        Map<String, String> map = new HashMap<>();
+        if (this.redisAbout.getEsDataCacheType() == null) {
+            return map;
+        }
+
+        List<String> typeIds = new ArrayList<>();
+        List<KeyEntity<? extends KeyType>> keyEntities = new ArrayList<>();
+        for (Map.Entry<String, SyncLog> entry : latestLogMap.entrySet()) {
+            if (!ActionEnum.UPDATE.equals(entry.getValue().getAction())) {
+                continue;
+            }
+
+            typeIds.add(entry.getKey());
+            keyEntities.add(KeyEntity.of(this.redisAbout.getEsDataCacheType(), entry.getKey()));
+        }
+        if (keyEntities.isEmpty()) {
+            return map;
+        }
+
+        List<String> values = this.redisAbout.getStrictRedisProvider().multiGet(keyEntities, String.class);
+        for (int i = 0; i < typeIds.size(); i++) {
+            if (values.get(i) != null) {
+                map.put(typeIds.get(i), values.get(i));
+            }
+        }
+
+        return map;
+    }
+
+    private void refreshCache(List<SyncLog> syncedLogs) {
+        if (this.redisAbout.getEsDataCacheType() == null) {
+            return;
+        }
+
+        Set<KeyEntity<? extends KeyType>> deleteKeys = new HashSet<>();
+        Map<KeyEntity<? extends KeyType>, StrictRedisProvider.AcceptType> setMap = new HashMap<>();
+        for (SyncLog log : syncedLogs) {
+            KeyEntity<? extends KeyType> keyEntity = KeyEntity.of(this.redisAbout.getEsDataCacheType(), log.calTypeId());
+
+            if (ActionEnum.DELETE.equals(log.getAction())) {
+                deleteKeys.add(keyEntity);
+                continue;
+            }
+
+            setMap.put(keyEntity, StrictRedisProvider.AcceptType.of(log.giveDataHash()));
+        }
+
+        if (!deleteKeys.isEmpty()) {
+            this.redisAbout.getStrictRedisProvider().delete(deleteKeys);
+        }
+        if (!setMap.isEmpty()) {
+            this.redisAbout.getStrictRedisProvider().multiSetEx(setMap, Duration.ofHours(1));
+        }
+    }
+
+    private void removeSyncedLogs(List<SyncLog> syncedLogs) {
+        if (syncedLogs.isEmpty()) {
+            return;
+        }
+
+        List<Criteria> criteriaList = new ArrayList<>();
+        for (SyncLog log : syncedLogs) {
+            criteriaList.add(
+                    Criteria.where("esName").is(log.getEsName()).and("uniqueId").is(log.getUniqueId()).and("version").lte(log.getVersion())
+            );
+        }
+
+        Query query = new Query();
+        query.addCriteria(new Criteria().orOperator(criteriaList.toArray(new Criteria[0])));
+
+        this.mongoTemplate.remove(query, this.logDbClazz);
     }
 
     private void syncToEs(EsNameId logJudge) {
+        this.clearInFlight(Lists.newArrayList(logJudge));
+
         CheckResourceValidToHandleInterface<SyncLog> entity = new CheckResourceValidToHandleInterface<>() {
             @Override
             public KeyEntity<? extends KeyType> getLock() {
@@ -228,8 +592,8 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
 
         if (ActionEnum.UPDATE.equals(log.getAction())) {
             if (keyEntity != null) {
-                String cacheStringData = this.redisAbout.getStrictRedisProvider().get(keyEntity, String.class);
-                if (cacheStringData != null && cacheStringData.equals(log.getData())) {
+                String cacheHash = this.redisAbout.getStrictRedisProvider().get(keyEntity, String.class);
+                if (cacheHash != null && cacheHash.equals(log.giveDataHash())) {
                     return;
                 }
             }
@@ -237,7 +601,7 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
 
         SimpleSearchHelper.insertOrUpdateData(this.jestClient, realEsName, log.getUniqueId(), log.getData());
         if (keyEntity != null) {
-            this.redisAbout.getStrictRedisProvider().set(keyEntity, StrictRedisProvider.AcceptType.of(log.getData()), Duration.ofHours(1));
+            this.redisAbout.getStrictRedisProvider().set(keyEntity, StrictRedisProvider.AcceptType.of(log.giveDataHash()), Duration.ofHours(1));
         }
     }
 
@@ -282,14 +646,25 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
 
         private M esDataSyncLockType;
 
+        //不为空时开启SyncLog合并模式
+        @Nullable
+        private M esSyncInFlightType;
+
         public static <M extends KeyType> RedisAbout<M> of(
                 StrictRedisProvider strictRedisProvider, @Nullable M cacheType, M lockType
+        ) {
+            return of(strictRedisProvider, cacheType, lockType, null);
+        }
+
+        public static <M extends KeyType> RedisAbout<M> of(
+                StrictRedisProvider strictRedisProvider, @Nullable M cacheType, M lockType, @Nullable M inFlightType
         ) {
             RedisAbout<M> data = new RedisAbout<>();
 
             data.setStrictRedisProvider(strictRedisProvider);
             data.setEsDataCacheType(cacheType);
             data.setEsDataSyncLockType(lockType);
+            data.setEsSyncInFlightType(inFlightType);
 
             return data;
         }
@@ -315,6 +690,9 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
 
         private String data;
 
+        //data的murmur3_128,缓存里只保存hash用来判断是否需要更新es
+        private String dataHash;
+
         @Indexed
         private String scope;
 
@@ -329,6 +707,14 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
         public String calTypeId() {
             return EsNameId.of(this).calTypeId();
         }
+
+        public String giveDataHash() {
+            if (this.dataHash == null) {
+                this.dataHash = EsHelper.hashJson(this.data);
+            }
+
+            return this.dataHash;
+        }
     }
 
     @Setter
@@ -338,7 +724,7 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
 
         private String uniqueId;
 
-        private String calTypeId() {
+        public String calTypeId() {
             return String.format("%s-%s", this.esName, this.uniqueId);
         }
 
@@ -352,6 +738,31 @@ public class EsProvider implements MongoPersistEntity.AfterDbPersistInterface {
         }
     }
 
+    @Setter
+    @Getter
+    public static class BatchSyncResult {
+        private int syncedCount;
+
+        private List<FailedItem> failedItems = new ArrayList<>();
+    }
+
+    @Setter
+    @Getter
+    public static class FailedItem {
+        private EsNameId esNameId;
+
+        private String reason;
+
+        public static FailedItem of(EsNameId esNameId, String reason) {
+            FailedItem data = new FailedItem();
+
+            data.setEsNameId(esNameId);
+            data.setReason(reason);
+
+            return data;
+        }
+    }
+
     public enum ActionEnum {
         INSERT, UPDATE, DELETE
     }
@@ -17,4 +17,14 @@ public interface ISearch<M extends IBaseEs> {
 
         return EsHelper.convertToJson(this.giveEsModel(), data);
     }
+
+    @Nullable
+    default EsHelper.EsJson giveEsJsonWithHash() {
+        M data = this.giveEsData();
+        if (data == null) {
+            return null;
+        }
+
+        return EsHelper.convertToJsonWithHash(this.giveEsModel(), data);
+    }
 }
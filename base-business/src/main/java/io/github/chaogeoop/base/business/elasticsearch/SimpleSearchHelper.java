@@ -14,9 +14,7 @@ import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.sort.SortBuilder;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 public class SimpleSearchHelper {
     public static void deleteIndex(JestClient jestClient, String esName) {
@@ -58,6 +56,40 @@ public class SimpleSearchHelper {
         }
     }
 
+    //一次_bulk请求写入和删除同一个index的多个文档,返回失败的文档id和原因
+    public static Map<String, String> bulkData(JestClient jestClient, String esName, Map<String, String> idDataMap, Set<String> deleteIds) {
+        Map<String, String> failedMap = new HashMap<>();
+        if (idDataMap.isEmpty() && deleteIds.isEmpty()) {
+            return failedMap;
+        }
+
+        Bulk.Builder builder = new Bulk.Builder().defaultIndex(esName).defaultType("_doc");
+        for (Map.Entry<String, String> entry : idDataMap.entrySet()) {
+            builder.addAction(new Index.Builder(entry.getValue()).id(entry.getKey()).build());
+        }
+        for (String id : deleteIds) {
+            builder.addAction(new Delete.Builder(id).build());
+        }
+
+        BulkResult result = null;
+        try {
+            result = jestClient.execute(builder.build());
+        } catch (IOException e) {
+            throw new BizException(e.getMessage());
+        }
+
+        List<BulkResult.BulkResultItem> failedItems = result.getFailedItems();
+        if (!result.isSucceeded() && failedItems.isEmpty()) {
+            throw new BizException(result.getErrorMessage());
+        }
+
+        for (BulkResult.BulkResultItem item : failedItems) {
+            failedMap.put(item.id, item.errorReason != null ? item.errorReason : item.error);
+        }
+
+        return failedMap;
+    }
+
     public static <M extends IBaseEs> ListPage<M> pageQuery(
             JestClient jestClient, QueryBuilder queryBuilder, EsPageSplitter esPageSplitter, Set<String> indicates, Class<M> clazz
     ) {
@@ -0,0 +1,17 @@
+package io.github.chaogeoop.base.business.mongodb;
+
+import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.mapping.event.AfterConvertCallback;
+
+//注册为bean后MongoTemplate读取IDirtyTracking模型时记录原始文档
+public class DirtyTrackingCallback implements AfterConvertCallback<BaseModel> {
+    @Override
+    public BaseModel onAfterConvert(BaseModel entity, Document document, String collection) {
+        if (entity instanceof IDirtyTracking) {
+            entity.recordDirtySnapshot(document);
+        }
+
+        return entity;
+    }
+}
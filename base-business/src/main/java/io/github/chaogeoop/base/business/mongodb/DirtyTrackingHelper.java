@@ -0,0 +1,87 @@
+package io.github.chaogeoop.base.business.mongodb;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.*;
+
+public class DirtyTrackingHelper {
+    private static final Set<String> IGNORE_KEYS = new HashSet<>(Arrays.asList("_id", "_class"));
+
+    //只比较顶层字段: 整数同类型变化用$inc,数组只在末尾追加了不重复的新元素时用$addToSet,其余变化用$set,消失的字段用$unset
+    protected static Update diff(Document origin, Document current) {
+        Update update = new Update();
+
+        for (Map.Entry<String, Object> entry : current.entrySet()) {
+            String key = entry.getKey();
+            if (IGNORE_KEYS.contains(key)) {
+                continue;
+            }
+
+            Object newValue = entry.getValue();
+            if (!origin.containsKey(key)) {
+                update.set(key, newValue);
+                continue;
+            }
+
+            Object oldValue = origin.get(key);
+            if (Objects.equals(oldValue, newValue)) {
+                continue;
+            }
+
+            if (oldValue instanceof Integer && newValue instanceof Integer) {
+                update.inc(key, (Integer) newValue - (Integer) oldValue);
+                continue;
+            }
+            if (oldValue instanceof Long && newValue instanceof Long) {
+                update.inc(key, (Long) newValue - (Long) oldValue);
+                continue;
+            }
+
+            List<?> appended = calAppended(oldValue, newValue);
+            if (appended != null) {
+                update.addToSet(key).each(appended.toArray());
+                continue;
+            }
+
+            update.set(key, newValue);
+        }
+
+        for (String key : origin.keySet()) {
+            if (IGNORE_KEYS.contains(key) || current.containsKey(key)) {
+                continue;
+            }
+
+            update.unset(key);
+        }
+
+        return update;
+    }
+
+    //新数组是旧数组加上若干个旧数组中没有且互不重复的元素时返回这些元素,否则返回null
+    private static List<?> calAppended(Object oldValue, Object newValue) {
+        if (!(oldValue instanceof List) || !(newValue instanceof List)) {
+            return null;
+        }
+
+        List<?> oldList = (List<?>) oldValue;
+        List<?> newList = (List<?>) newValue;
+        if (newList.size() <= oldList.size() || !newList.subList(0, oldList.size()).equals(oldList)) {
+            return null;
+        }
+
+        Set<Object> existSet = new HashSet<>(oldList);
+        if (existSet.size() < oldList.size()) {
+            return null;
+        }
+
+        List<?> appended = newList.subList(oldList.size(), newList.size());
+        for (Object value : appended) {
+            if (!existSet.add(value)) {
+                return null;
+            }
+        }
+
+        return appended;
+    }
+}
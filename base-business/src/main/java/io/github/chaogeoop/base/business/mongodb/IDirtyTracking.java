@@ -0,0 +1,6 @@
+package io.github.chaogeoop.base.business.mongodb;
+
+//实现这个接口的模型在读取时保存原始文档快照(需要注册DirtyTrackingCallback),保存时只更新变化的字段
+//没有快照时(新建或未注册callback)退回整个文档替换
+public interface IDirtyTracking {
+}
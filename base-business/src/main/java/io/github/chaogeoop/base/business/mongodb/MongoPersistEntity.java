@@ -5,29 +5,49 @@ import io.github.chaogeoop.base.business.common.helpers.CollectionHelper;
 import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
+import com.mongodb.bulk.BulkWriteResult;
 import lombok.Getter;
 import lombok.Setter;
+import org.bson.Document;
 import org.bson.types.ObjectId;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
+import javax.annotation.Nullable;
+import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 public class MongoPersistEntity {
     private final MongoTemplate mongoTemplate;
 
     private final List<AfterDbPersistInterface> afterDbPersistHandlers;
 
-    private MongoPersistEntity(MongoTemplate mongoTemplate, List<AfterDbPersistInterface> afterDbPersistHandlers) {
+    private final BulkConfig bulkConfig;
+
+    private MongoPersistEntity(MongoTemplate mongoTemplate, List<AfterDbPersistInterface> afterDbPersistHandlers, BulkConfig bulkConfig) {
         this.mongoTemplate = mongoTemplate;
         this.afterDbPersistHandlers = afterDbPersistHandlers;
+        this.bulkConfig = bulkConfig;
     }
 
     public static MongoPersistEntity of(MongoTemplate mongoTemplate, List<AfterDbPersistInterface> afterDbPersistHandlers) {
-        return new MongoPersistEntity(mongoTemplate, afterDbPersistHandlers);
+        return of(mongoTemplate, afterDbPersistHandlers, new BulkConfig());
+    }
+
+    public static MongoPersistEntity of(
+            MongoTemplate mongoTemplate, List<AfterDbPersistInterface> afterDbPersistHandlers, BulkConfig bulkConfig
+    ) {
+        return new MongoPersistEntity(mongoTemplate, afterDbPersistHandlers, bulkConfig);
     }
 
     protected void persist(MongoPersistEntity.PersistMap persistMap) {
@@ -36,11 +56,9 @@ public class MongoPersistEntity {
             entry.setValue(Lists.newArrayList(datas));
         }
 
-        for (Map.Entry<ModelClazzCollectionName, List<BaseModel>> entry : persistMap.getSaveMap().entrySet()) {
-            for (BaseModel data : entry.getValue()) {
-                this.mongoTemplate.save(data, entry.getKey().getCollectionName());
-            }
-        }
+        this.bulkSave(persistMap.getSaveMap());
+
+        this.bulkInc(persistMap.getIncMap());
 
         for (Map.Entry<ModelClazzCollectionName, List<BaseModel>> entry : persistMap.getDeleteMap().entrySet()) {
             List<ObjectId> ids = CollectionHelper.map(entry.getValue(), o -> new ObjectId(o.getId().toString(16)));
@@ -66,11 +84,206 @@ public class MongoPersistEntity {
         }
     }
 
+    //不在事务里执行只有insert的持久化,先分配好id,失败时按id删除已经插入的记录
+    //只删除这里分配的id,调用方指定的id可能属于已有的记录
+    protected void persistInsertOnly(MongoPersistEntity.PersistMap persistMap) {
+        if (!persistMap.getSaveMap().isEmpty() || !persistMap.getDeleteMap().isEmpty() || !persistMap.getIncMap().isEmpty()) {
+            throw new BizException("只能用于只有insert的持久化");
+        }
+
+        MultiValueMap<ModelClazzCollectionName, BaseModel> generateIdMap = new LinkedMultiValueMap<>();
+        for (Map.Entry<ModelClazzCollectionName, List<BaseModel>> entry : persistMap.getInsertMap().entrySet()) {
+            for (BaseModel data : entry.getValue()) {
+                if (data.getId() == null) {
+                    data.setId(new BigInteger(new ObjectId().toHexString(), 16));
+                    generateIdMap.add(entry.getKey(), data);
+                }
+            }
+        }
+
+        try {
+            this.persist(persistMap);
+        } catch (RuntimeException e) {
+            for (Map.Entry<ModelClazzCollectionName, List<BaseModel>> entry : generateIdMap.entrySet()) {
+                List<ObjectId> ids = CollectionHelper.map(entry.getValue(), o -> new ObjectId(o.getId().toString(16)));
+
+                Query query = new Query();
+                query.addCriteria(Criteria.where("_id").in(ids));
+
+                try {
+                    this.mongoTemplate.remove(query, entry.getKey().getCollectionName());
+                } catch (RuntimeException removeError) {
+                    e.addSuppressed(removeError);
+                    continue;
+                }
+
+                //删除成功后还原,调用方重试时重新分配id
+                for (BaseModel data : entry.getValue()) {
+                    data.setId(null);
+                }
+            }
+
+            throw e;
+        }
+    }
+
+    //每个集合按chunkSize分批bulkWrite,没有事务且配置了线程池时不同集合并行执行
+    private void bulkSave(MultiValueMap<ModelClazzCollectionName, BaseModel> saveMap) {
+        if (saveMap.isEmpty()) {
+            return;
+        }
+
+        Executor executor = this.bulkConfig.getParallelExecutor();
+        if (executor == null || saveMap.size() == 1 || TransactionSynchronizationManager.isActualTransactionActive()) {
+            for (Map.Entry<ModelClazzCollectionName, List<BaseModel>> entry : saveMap.entrySet()) {
+                this.bulkSave(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Map.Entry<ModelClazzCollectionName, List<BaseModel>> entry : saveMap.entrySet()) {
+            futures.add(CompletableFuture.runAsync(() -> this.bulkSave(entry.getKey(), entry.getValue()), executor));
+        }
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new BizException(e);
+        }
+    }
+
+    private void bulkSave(ModelClazzCollectionName key, List<BaseModel> datas) {
+        for (List<BaseModel> chunk : Lists.partition(datas, this.bulkConfig.getChunkSize())) {
+            this.bulkSaveChunk(key, chunk);
+        }
+    }
+
+    //与mongoTemplate.save的乐观锁语义一致: 没有版本的插入并从0开始,有版本的按_id和版本替换并加1,没有匹配到则抛出乐观锁异常
+    private void bulkSaveChunk(ModelClazzCollectionName key, List<BaseModel> datas) {
+        BulkOperations bulkOps = this.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, key.getModelClazz(), key.getCollectionName());
+
+        Map<BaseModel, Long> originVersionMap = new IdentityHashMap<>();
+        List<BaseModel> generateIdList = new ArrayList<>();
+        Map<BaseModel, Document> snapshotMap = new IdentityHashMap<>();
+        int replaceCount = 0;
+
+        for (BaseModel data : datas) {
+            originVersionMap.put(data, data.getV());
+
+            if (data.getV() == null) {
+                if (data.getId() == null) {
+                    data.setId(new BigInteger(new ObjectId().toHexString(), 16));
+                    generateIdList.add(data);
+                }
+                data.setV(0L);
+
+                bulkOps.insert(data);
+                continue;
+            }
+
+            Query query = new Query();
+            query.addCriteria(Criteria.where("_id").is(data.getId()));
+            query.addCriteria(Criteria.where("v").is(data.getV()));
+
+            data.setV(data.getV() + 1);
+            replaceCount++;
+
+            //有读取快照的只更新变化的字段
+            Document snapshot = data.giveDirtySnapshot();
+            if (data instanceof IDirtyTracking && snapshot != null) {
+                Document current = new Document();
+                this.mongoTemplate.getConverter().write(data, current);
+
+                bulkOps.updateOne(query, DirtyTrackingHelper.diff(snapshot, current));
+                snapshotMap.put(data, current);
+                continue;
+            }
+
+            bulkOps.replaceOne(query, data);
+        }
+
+        BulkWriteResult result;
+        try {
+            result = bulkOps.execute();
+        } catch (RuntimeException e) {
+            restore(originVersionMap, generateIdList);
+            throw e;
+        }
+
+        if (result.getMatchedCount() < replaceCount) {
+            restore(originVersionMap, generateIdList);
+            throw new OptimisticLockingFailureException(String.format(
+                    "%s 乐观锁冲突: %s-%s", key.getCollectionName(), replaceCount, result.getMatchedCount()
+            ));
+        }
+
+        for (Map.Entry<BaseModel, Document> entry : snapshotMap.entrySet()) {
+            entry.getKey().recordDirtySnapshot(entry.getValue());
+        }
+    }
+
+    //每个集合按chunkSize分批一次bulkWrite,同时把__v加1,让基于旧版本的save产生乐观锁冲突
+    //CommonCountProvider持锁读改写遇到冲突时会重新读取重试
+    private void bulkInc(MultiValueMap<ModelClazzCollectionName, IncEntity> incMap) {
+        for (Map.Entry<ModelClazzCollectionName, List<IncEntity>> entry : incMap.entrySet()) {
+            ModelClazzCollectionName key = entry.getKey();
+
+            for (List<IncEntity> chunk : Lists.partition(entry.getValue(), this.bulkConfig.getChunkSize())) {
+                BulkOperations bulkOps = this.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, key.getModelClazz(), key.getCollectionName());
+
+                int updateCount = 0;
+                for (IncEntity data : chunk) {
+                    Query query = new Query();
+                    for (Map.Entry<String, Object> keyEntry : data.getKeyMap().entrySet()) {
+                        query.addCriteria(Criteria.where(keyEntry.getKey()).is(keyEntry.getValue()));
+                    }
+
+                    Update update = new Update();
+                    for (Map.Entry<String, Long> incEntry : data.getIncMap().entrySet()) {
+                        update.inc(incEntry.getKey(), incEntry.getValue());
+                    }
+                    for (Map.Entry<String, Object> addToSetEntry : data.getAddToSetMap().entrySet()) {
+                        update.addToSet(addToSetEntry.getKey(), addToSetEntry.getValue());
+                    }
+                    update.inc("__v", 1);
+
+                    if (data.isUpsert()) {
+                        bulkOps.upsert(query, update);
+                    } else {
+                        bulkOps.updateOne(query, update);
+                        updateCount++;
+                    }
+                }
+
+                BulkWriteResult result = bulkOps.execute();
+                if (result.getMatchedCount() < updateCount) {
+                    throw new BizException(String.format(
+                            "%s inc记录不存在: %s-%s", key.getCollectionName(), updateCount, result.getMatchedCount()
+                    ));
+                }
+            }
+        }
+    }
+
+    private static void restore(Map<BaseModel, Long> originVersionMap, List<BaseModel> generateIdList) {
+        for (Map.Entry<BaseModel, Long> entry : originVersionMap.entrySet()) {
+            entry.getKey().setV(entry.getValue());
+        }
+        for (BaseModel data : generateIdList) {
+            data.setId(null);
+        }
+    }
+
     public PersistMap convertToCollectionNameDatabaseMap(List<PersistEntity> list) {
         MultiValueMap<ModelClazzCollectionName, BaseModel> insertMap = new LinkedMultiValueMap<>();
         MultiValueMap<ModelClazzCollectionName, BaseModel> saveMap = new LinkedMultiValueMap<>();
         MultiValueMap<ModelClazzCollectionName, BaseModel> deleteMap = new LinkedMultiValueMap<>();
-
+        MultiValueMap<ModelClazzCollectionName, IncEntity> incMap = new LinkedMultiValueMap<>();
 
         for (PersistEntity obj : list) {
             for (Map.Entry<Class<? extends BaseModel>, Set<BaseModel>> entry : obj.getDatabase().getInsertMap().entrySet()) {
@@ -105,6 +318,13 @@ public class MongoPersistEntity {
                     deleteMap.add(ModelClazzCollectionName.of(entry.getKey(), collectionName), data);
                 }
             }
+
+            for (IncEntity data : obj.getDatabase().getIncList()) {
+                BaseModel keyData = data.getKeyData();
+
+                String collectionName = EnhanceBaseModelManager.getAccordCollectionNameByData(this.mongoTemplate, keyData);
+                incMap.add(ModelClazzCollectionName.of(keyData.getClass(), collectionName), data);
+            }
         }
 
         PersistMap persistMap = new PersistMap();
@@ -112,6 +332,7 @@ public class MongoPersistEntity {
         persistMap.setInsertMap(insertMap);
         persistMap.setSaveMap(saveMap);
         persistMap.setDeleteMap(deleteMap);
+        persistMap.setIncMap(incMap);
 
         for (PersistEntity obj : list) {
             persistMap.getCacheList().addAll(obj.getCacheList());
@@ -162,6 +383,8 @@ public class MongoPersistEntity {
 
         private Map<Class<? extends BaseModel>, Set<BaseModel>> deleteMap = new HashMap<>();
 
+        private List<IncEntity> incList = new ArrayList<>();
+
         public void insert(BaseModel data) {
             Set<BaseModel> saveSet = this.saveMap.get(data.getClass());
             if (saveSet != null) {
@@ -217,8 +440,12 @@ public class MongoPersistEntity {
             }
         }
 
+        public void inc(IncEntity data) {
+            this.getIncList().add(data);
+        }
+
         public boolean isEmpty() {
-            return this.insertMap.isEmpty() && this.saveMap.isEmpty() && this.deleteMap.isEmpty();
+            return this.insertMap.isEmpty() && this.saveMap.isEmpty() && this.deleteMap.isEmpty() && this.incList.isEmpty();
         }
     }
 
@@ -233,12 +460,58 @@ public class MongoPersistEntity {
 
         private MultiValueMap<ModelClazzCollectionName, BaseModel> deleteMap = new LinkedMultiValueMap<>();
 
+        private MultiValueMap<ModelClazzCollectionName, IncEntity> incMap = new LinkedMultiValueMap<>();
+
         private List<CacheInterface> cacheList = new ArrayList<>();
 
         private List<MessageInterface> messages = new ArrayList<>();
 
         public boolean databaseIsEmpty() {
-            return this.insertMap.isEmpty() && this.saveMap.isEmpty() && this.deleteMap.isEmpty();
+            return this.insertMap.isEmpty() && this.saveMap.isEmpty() && this.deleteMap.isEmpty() && this.incMap.isEmpty();
+        }
+
+        public int giveDatabaseWriteCount() {
+            int count = 0;
+            for (List<BaseModel> datas : this.insertMap.values()) {
+                count += datas.size();
+            }
+            for (List<BaseModel> datas : this.saveMap.values()) {
+                count += datas.size();
+            }
+            for (List<BaseModel> datas : this.deleteMap.values()) {
+                count += datas.size();
+            }
+            for (List<IncEntity> datas : this.incMap.values()) {
+                count += datas.size();
+            }
+
+            return count;
+        }
+    }
+
+    //按keyMap定位一条记录在服务端$inc,不需要先读出来;keyData只用来确定模型和分表
+    @Setter
+    @Getter
+    public static class IncEntity {
+        private BaseModel keyData;
+
+        private Map<String, Object> keyMap = new LinkedHashMap<>();
+
+        private Map<String, Long> incMap = new LinkedHashMap<>();
+
+        private Map<String, Object> addToSetMap = new LinkedHashMap<>();
+
+        private boolean upsert;
+
+        public static IncEntity of(BaseModel keyData, Map<String, Object> keyMap, Map<String, Long> incMap, boolean upsert) {
+            IncEntity data = new IncEntity();
+
+            data.setKeyData(keyData);
+            data.setKeyMap(keyMap);
+            data.setIncMap(incMap);
+            data.setUpsert(upsert);
+
+            return data;
         }
     }
 
@@ -272,6 +545,25 @@ public class MongoPersistEntity {
         }
     }
 
+    @Setter
+    @Getter
+    public static class BulkConfig {
+        private int chunkSize = 1000;
+
+        //只在没有事务时使用,事务的session绑定在当前线程上
+        @Nullable
+        private Executor parallelExecutor;
+
+        public static BulkConfig of(int chunkSize, @Nullable Executor parallelExecutor) {
+            BulkConfig data = new BulkConfig();
+
+            data.setChunkSize(chunkSize);
+            data.setParallelExecutor(parallelExecutor);
+
+            return data;
+        }
+    }
+
     public interface CacheInterface {
         void persist();
 
@@ -284,5 +576,10 @@ public class MongoPersistEntity {
 
     public interface AfterDbPersistInterface {
         void handle(PersistMap persistMap);
+
+        //handle里是否会写数据库,默认认为会写,返回false时PersistProvider才可能不开事务
+        default boolean writeDatabase(PersistMap persistMap) {
+            return true;
+        }
     }
 }
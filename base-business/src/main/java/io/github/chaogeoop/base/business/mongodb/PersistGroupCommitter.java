@@ -0,0 +1,286 @@
+package io.github.chaogeoop.base.business.mongodb;
+
+import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//把多个调用方的persistAsync在一个窗口内合并成一次持久化,数据库、缓存和消息都在专用线程上执行
+//合并后失败时逐个重新持久化,只让真正出错的调用方失败;消息按调用方分别发送,互不影响
+@Slf4j
+public class PersistGroupCommitter {
+    //最多积压这么多批,写入跟不上时直接拒绝,不让内存无限增长
+    private static final int MAX_PENDING_BATCHES = 100;
+
+    private final PersistProvider persistProvider;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+
+    private final LinkedBlockingQueue<Request> queue;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    PersistGroupCommitter(PersistProvider persistProvider, int maxBatchSize, Duration window) {
+        if (maxBatchSize < 1) {
+            throw new BizException(String.format("maxBatchSize cant lt 1: %s", maxBatchSize));
+        }
+
+        this.persistProvider = persistProvider;
+        this.maxBatchSize = maxBatchSize;
+        this.queue = new LinkedBlockingQueue<>(maxBatchSize * MAX_PENDING_BATCHES);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "persist-group-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long windowMillis = Math.max(1, window.toMillis());
+        this.scheduler.scheduleWithFixedDelay(this::flushQuietly, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    CompletableFuture<Void> submit(List<MongoPersistEntity.PersistEntity> list) {
+        Request request = new Request(list);
+        if (this.closed) {
+            request.future.completeExceptionally(new BizException("persistGroupCommitter已关闭"));
+            return request.future;
+        }
+
+        if (!this.queue.offer(request)) {
+            request.future.completeExceptionally(new BizException(String.format("persistGroupCommitter队列已满: %s", this.queue.size())));
+            return request.future;
+        }
+
+        //入队时刚好关闭,最后一次flush可能已经错过这个请求
+        if (this.closed && this.queue.remove(request)) {
+            request.future.completeExceptionally(new BizException("persistGroupCommitter已关闭"));
+            return request.future;
+        }
+
+        if (this.queue.size() >= this.maxBatchSize && this.flushScheduled.compareAndSet(false, true)) {
+            try {
+                this.scheduler.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                this.flushScheduled.set(false);
+            }
+        }
+
+        return request.future;
+    }
+
+    public void shutdown() {
+        this.closed = true;
+        this.scheduler.shutdown();
+
+        try {
+            this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.flush();
+    }
+
+    private synchronized void flush() {
+        this.flushScheduled.set(false);
+
+        while (true) {
+            List<Request> batch = new ArrayList<>();
+            this.queue.drainTo(batch, this.maxBatchSize);
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            for (List<Request> group : splitCompatible(batch)) {
+                this.commit(group);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            this.flush();
+        } catch (Exception e) {
+            log.error("persistGroupCommitter flush error", e);
+        }
+    }
+
+    private void commit(List<Request> group) {
+        if (group.size() == 1) {
+            this.commitSingle(group.get(0));
+            return;
+        }
+
+        List<MongoPersistEntity.PersistEntity> merged = new ArrayList<>();
+        List<ModelState> states = new ArrayList<>();
+        for (Request request : group) {
+            merged.addAll(request.list);
+            request.collectModelStates(states);
+        }
+
+        MongoPersistEntity.PersistMap persistMap;
+        try {
+            persistMap = this.persistProvider.persistWithoutMessages(merged, null);
+        } catch (Exception e) {
+            log.warn("persistGroupCommitter group fail, retry one by one: {}", group.size(), e);
+
+            //合并持久化失败时数据库整体回滚了,其它请求的模型可能已经改了版本和id,还原后再逐个重试
+            for (ModelState state : states) {
+                state.restore();
+            }
+
+            for (Request request : group) {
+                this.commitSingle(request);
+            }
+            return;
+        }
+
+        this.sendMessages(group, persistMap);
+    }
+
+    private void commitSingle(Request request) {
+        MongoPersistEntity.PersistMap persistMap;
+        try {
+            persistMap = this.persistProvider.persistWithoutMessages(request.list, null);
+        } catch (Exception e) {
+            request.future.completeExceptionally(e);
+            return;
+        }
+
+        this.sendMessages(Collections.singletonList(request), persistMap);
+    }
+
+    //先按调用方发送各自的消息,再发送handler追加到persistMap里的消息(如es同步),后者失败时整组都失败
+    private void sendMessages(List<Request> group, MongoPersistEntity.PersistMap persistMap) {
+        Set<MongoPersistEntity.MessageInterface> ownMessages = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Request request : group) {
+            for (MongoPersistEntity.PersistEntity entity : request.list) {
+                ownMessages.addAll(entity.getMessages());
+            }
+        }
+
+        Map<Request, Exception> errorMap = new IdentityHashMap<>();
+        for (Request request : group) {
+            try {
+                for (MongoPersistEntity.PersistEntity entity : request.list) {
+                    for (MongoPersistEntity.MessageInterface message : entity.getMessages()) {
+                        message.send();
+                    }
+                }
+            } catch (Exception e) {
+                errorMap.put(request, e);
+            }
+        }
+
+        Exception sharedError = null;
+        try {
+            for (MongoPersistEntity.MessageInterface message : persistMap.getMessages()) {
+                if (!ownMessages.contains(message)) {
+                    message.send();
+                }
+            }
+        } catch (Exception e) {
+            sharedError = e;
+        }
+
+        for (Request request : group) {
+            Exception error = errorMap.getOrDefault(request, sharedError);
+            if (error != null) {
+                request.future.completeExceptionally(error);
+            } else {
+                request.future.complete(null);
+            }
+        }
+    }
+
+    //同一条记录只能出现在一个组里,避免同组内互相覆盖或乐观锁冲突拖垮整组
+    private static List<List<Request>> splitCompatible(List<Request> batch) {
+        List<List<Request>> groups = new ArrayList<>();
+
+        List<Request> current = new ArrayList<>();
+        Set<String> currentKeys = new HashSet<>();
+        for (Request request : batch) {
+            Set<String> keys = request.giveModelKeys();
+            if (!Collections.disjoint(currentKeys, keys)) {
+                groups.add(current);
+                current = new ArrayList<>();
+                currentKeys = new HashSet<>();
+            }
+
+            current.add(request);
+            currentKeys.addAll(keys);
+        }
+        groups.add(current);
+
+        return groups;
+    }
+
+    private static class Request {
+        private final List<MongoPersistEntity.PersistEntity> list;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Request(List<MongoPersistEntity.PersistEntity> list) {
+            this.list = list;
+        }
+
+        private Set<String> giveModelKeys() {
+            Set<String> keys = new HashSet<>();
+
+            for (BaseModel data : this.giveModels()) {
+                if (data.getId() != null) {
+                    keys.add(String.format("%s:%s", data.getClass().getName(), data.getId().toString(16)));
+                }
+            }
+
+            return keys;
+        }
+
+        private void collectModelStates(List<ModelState> states) {
+            for (BaseModel data : this.giveModels()) {
+                states.add(new ModelState(data));
+            }
+        }
+
+        private List<BaseModel> giveModels() {
+            List<BaseModel> models = new ArrayList<>();
+
+            for (MongoPersistEntity.PersistEntity entity : this.list) {
+                MongoPersistEntity.PersistDatabase database = entity.getDatabase();
+
+                for (Map<Class<? extends BaseModel>, Set<BaseModel>> map : Arrays.asList(database.getInsertMap(), database.getSaveMap(), database.getDeleteMap())) {
+                    for (Set<BaseModel> datas : map.values()) {
+                        models.addAll(datas);
+                    }
+                }
+            }
+
+            return models;
+        }
+    }
+
+    private static class ModelState {
+        private final BaseModel data;
+        private final BigInteger id;
+        private final Long v;
+        private final Document dirtySnapshot;
+
+        private ModelState(BaseModel data) {
+            this.data = data;
+            this.id = data.getId();
+            this.v = data.getV();
+            this.dirtySnapshot = data.giveDirtySnapshot();
+        }
+
+        private void restore() {
+            this.data.setId(this.id);
+            this.data.setV(this.v);
+            this.data.recordDirtySnapshot(this.dirtySnapshot);
+        }
+    }
+}
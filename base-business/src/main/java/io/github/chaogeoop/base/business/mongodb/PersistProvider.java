@@ -1,19 +1,34 @@
 package io.github.chaogeoop.base.business.mongodb;
 
+import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
 import org.springframework.data.mongodb.MongoTransactionManager;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Nullable;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PersistProvider {
     private final MongoTemplate mongoTemplate;
     private final MongoTransactionManager mongoTransactionManager;
     private final MongoPersistEntity.AfterDbPersistInterface esSyncProvider;
 
+    private MongoPersistEntity.BulkConfig bulkConfig = new MongoPersistEntity.BulkConfig();
+
+    @Nullable
+    private volatile PersistGroupCommitter groupCommitter;
+
+    private final Map<PersistPathEnum, LongAdder> pathCountMap = new EnumMap<>(PersistPathEnum.class);
+    private final Map<PersistPathEnum, LongAdder> pathMillisMap = new EnumMap<>(PersistPathEnum.class);
 
     public PersistProvider(
             MongoTemplate mongoTemplate,
@@ -23,49 +38,184 @@ public class PersistProvider {
         this.mongoTemplate = mongoTemplate;
         this.mongoTransactionManager = mongoTransactionManager;
         this.esSyncProvider = esSyncProvider;
+
+        for (PersistPathEnum path : PersistPathEnum.values()) {
+            this.pathCountMap.put(path, new LongAdder());
+            this.pathMillisMap.put(path, new LongAdder());
+        }
     }
 
     public MongoTemplate giveMongoTemplate() {
         return this.mongoTemplate;
     }
 
+    public void setBulkConfig(MongoPersistEntity.BulkConfig bulkConfig) {
+        this.bulkConfig = bulkConfig;
+    }
+
     public void persist(
             List<MongoPersistEntity.PersistEntity> list
     ) {
-        this.persist(list, persistMap -> {
-        });
+        this.persist(list, null);
     }
 
     public void persist(
             List<MongoPersistEntity.PersistEntity> list,
-            MongoPersistEntity.AfterDbPersistInterface afterDbPersistHandle
+            @Nullable MongoPersistEntity.AfterDbPersistInterface afterDbPersistHandle
+    ) {
+        MongoPersistEntity.PersistMap persistMap = this.persistWithoutMessages(list, afterDbPersistHandle);
+
+        for (MongoPersistEntity.MessageInterface message : persistMap.getMessages()) {
+            message.send();
+        }
+    }
+
+    //需要先enableAsync,在专用线程上和其它调用方合并持久化,消息发送完成后future才完成
+    public CompletableFuture<Void> persistAsync(List<MongoPersistEntity.PersistEntity> list) {
+        PersistGroupCommitter committer = this.groupCommitter;
+        if (committer == null) {
+            throw new BizException("persistAsync未开启");
+        }
+
+        return committer.submit(list);
+    }
+
+    public synchronized void enableAsync(int maxBatchSize, Duration window) {
+        if (this.groupCommitter != null) {
+            return;
+        }
+
+        this.groupCommitter = new PersistGroupCommitter(this, maxBatchSize, window);
+    }
+
+    public synchronized void disableAsync() {
+        if (this.groupCommitter == null) {
+            return;
+        }
+
+        PersistGroupCommitter committer = this.groupCommitter;
+        this.groupCommitter = null;
+        committer.shutdown();
+    }
+
+    MongoPersistEntity.PersistMap persistWithoutMessages(
+            List<MongoPersistEntity.PersistEntity> list,
+            @Nullable MongoPersistEntity.AfterDbPersistInterface afterDbPersistHandle
     ) {
         List<MongoPersistEntity.AfterDbPersistInterface> handlers = new ArrayList<>();
         if (this.esSyncProvider != null) {
             handlers.add(this.esSyncProvider);
         }
-        handlers.add(afterDbPersistHandle);
+        if (afterDbPersistHandle != null) {
+            handlers.add(afterDbPersistHandle);
+        }
 
 
-        MongoPersistEntity entity = MongoPersistEntity.of(this.mongoTemplate, handlers);
+        MongoPersistEntity entity = MongoPersistEntity.of(this.mongoTemplate, handlers, this.bulkConfig);
 
         MongoPersistEntity.PersistMap persistMap = entity.convertToCollectionNameDatabaseMap(list);
 
-        if (persistMap.databaseIsEmpty()) {
-            entity.persist(persistMap);
-        } else {
-            TransactionStatus status = this.mongoTransactionManager.getTransaction(new DefaultTransactionDefinition());
-            try {
+        PersistPathEnum path = this.classify(persistMap, handlers);
+        long startAt = System.currentTimeMillis();
+
+        switch (path) {
+            case NO_DATABASE:
                 entity.persist(persistMap);
-                this.mongoTransactionManager.commit(status);
-            } catch (Exception e) {
-                this.mongoTransactionManager.rollback(status);
-                throw e;
+                break;
+            case SINGLE_WRITE:
+            case RETRYABLE_INSERT:
+                if (persistMap.getInsertMap().isEmpty()) {
+                    entity.persist(persistMap);
+                } else {
+                    entity.persistInsertOnly(persistMap);
+                }
+                break;
+            default:
+                TransactionStatus status = this.mongoTransactionManager.getTransaction(new DefaultTransactionDefinition());
+                try {
+                    entity.persist(persistMap);
+                    this.mongoTransactionManager.commit(status);
+                } catch (Exception e) {
+                    this.mongoTransactionManager.rollback(status);
+                    throw e;
+                }
+        }
+
+        this.pathCountMap.get(path).increment();
+        this.pathMillisMap.get(path).add(System.currentTimeMillis() - startAt);
+
+        return persistMap;
+    }
+
+    //只有失败后数据库能恢复原状的情况才不开事务
+    PersistPathEnum classify(MongoPersistEntity.PersistMap persistMap, List<MongoPersistEntity.AfterDbPersistInterface> handlers) {
+        if (persistMap.databaseIsEmpty()) {
+            return PersistPathEnum.NO_DATABASE;
+        }
+
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return PersistPathEnum.TRANSACTION;
+        }
+
+        for (MongoPersistEntity.AfterDbPersistInterface handler : handlers) {
+            if (handler.writeDatabase(persistMap)) {
+                return PersistPathEnum.TRANSACTION;
             }
         }
 
-        for (MongoPersistEntity.MessageInterface message : persistMap.getMessages()) {
-            message.send();
+        int writeCount = persistMap.giveDatabaseWriteCount();
+
+        //只insert一个集合: 一次insertMany,依赖驱动的可重试写,失败时按预先分配的id删除
+        boolean insertOnly = persistMap.getSaveMap().isEmpty() && persistMap.getDeleteMap().isEmpty() &&
+                persistMap.getIncMap().isEmpty() && persistMap.getInsertMap().size() == 1;
+        if (insertOnly) {
+            //调用方指定的id可能和已有记录冲突,不能按id删除补偿,只有失败时什么都没写入的单条insert才不开事务
+            if (hasAssignedInsertId(persistMap)) {
+                return writeCount == 1 && persistMap.getCacheList().isEmpty() ? PersistPathEnum.SINGLE_WRITE : PersistPathEnum.TRANSACTION;
+            }
+
+            return writeCount == 1 ? PersistPathEnum.SINGLE_WRITE : PersistPathEnum.RETRYABLE_INSERT;
+        }
+
+        //单条save/delete/inc本身是原子的,但缓存失败后无法撤销,有缓存时仍然要事务
+        if (writeCount == 1 && persistMap.getCacheList().isEmpty()) {
+            return PersistPathEnum.SINGLE_WRITE;
         }
+
+        return PersistPathEnum.TRANSACTION;
+    }
+
+    private static boolean hasAssignedInsertId(MongoPersistEntity.PersistMap persistMap) {
+        for (List<BaseModel> datas : persistMap.getInsertMap().values()) {
+            for (BaseModel data : datas) {
+                if (data.getId() != null) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    public Map<PersistPathEnum, Long> givePathCountMap() {
+        Map<PersistPathEnum, Long> map = new EnumMap<>(PersistPathEnum.class);
+        for (Map.Entry<PersistPathEnum, LongAdder> entry : this.pathCountMap.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return map;
+    }
+
+    public Map<PersistPathEnum, Long> givePathMillisMap() {
+        Map<PersistPathEnum, Long> map = new EnumMap<>(PersistPathEnum.class);
+        for (Map.Entry<PersistPathEnum, LongAdder> entry : this.pathMillisMap.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return map;
+    }
+
+    public enum PersistPathEnum {
+        NO_DATABASE, SINGLE_WRITE, RETRYABLE_INSERT, TRANSACTION
     }
 }
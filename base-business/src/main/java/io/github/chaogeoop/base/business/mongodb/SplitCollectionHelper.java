@@ -21,7 +21,7 @@ public class SplitCollectionHelper {
     }
 
     @Nullable
-    protected static String calSplitIndex(String collectionName) {
+    public static String calSplitIndex(String collectionName) {
         Matcher matcher = splitPattern.matcher(collectionName);
         if (!matcher.find()) {
             return null;
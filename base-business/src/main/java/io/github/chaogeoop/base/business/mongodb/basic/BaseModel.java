@@ -1,15 +1,19 @@
 package io.github.chaogeoop.base.business.mongodb.basic;
 
 import io.github.chaogeoop.base.business.common.errors.BizException;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.Field;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 
 @Setter
@@ -24,6 +28,22 @@ public abstract class BaseModel {
     @Field(value = "__v")
     private Long v;
 
+    //IDirtyTracking模型读取时的原始文档
+    @Transient
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private org.bson.Document dirtySnapshot;
+
+    @Nullable
+    public org.bson.Document giveDirtySnapshot() {
+        return this.dirtySnapshot;
+    }
+
+    public void recordDirtySnapshot(@Nullable org.bson.Document dirtySnapshot) {
+        this.dirtySnapshot = dirtySnapshot;
+    }
+
     public static String getBaseCollectionNameByClazz(Class<? extends BaseModel> clazz) {
         if (!clazz.isAnnotationPresent(Document.class)) {
             throw new BizException("找不到表名");
@@ -10,6 +10,7 @@ import org.springframework.core.type.filter.AssignableTypeFilter;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class DistributedKeyProvider {
@@ -17,6 +18,8 @@ public class DistributedKeyProvider {
 
     private final Map<KeyFinder, KeyType> findTypeMap = new HashMap<>();
 
+    private final Map<KeyType, KeyPrefix> prefixMap = new HashMap<>();
+
     private final String scope;
 
 
@@ -59,9 +62,11 @@ public class DistributedKeyProvider {
                         throw new BizException(String.format("该锁类型已被其它模块注册: %s-%s", type.getType(), type.getSubType()));
                     }
                     registeredTypes.add(type);
+                    type.freeze();
 
                     this.clazzTypes.get(memberClazz).add(type);
                     this.findTypeMap.put(KeyFinder.of(type), type);
+                    this.prefixMap.put(type, KeyPrefix.of(memberClazz, this.scope, type));
                 }
 
             } catch (Exception e) {
@@ -79,15 +84,50 @@ public class DistributedKeyProvider {
     }
 
     public <T extends KeyType> String getKey(KeyEntity<T> keyEntity) {
-        Class<? extends KeyType> clazz = keyEntity.getType().getClass();
+        KeyPrefix prefix = this.getKeyPrefix(keyEntity.getType());
+        String typeId = String.valueOf(keyEntity.getTypeId());
+
+        return new StringBuilder(prefix.getValue().length() + typeId.length()).append(prefix.getValue()).append(typeId).toString();
+    }
 
-        Set<KeyType> types = this.clazzTypes.get(clazz);
+    //utf-8编码的key,前缀的字节提前算好
+    public <T extends KeyType> byte[] getKeyBytes(KeyEntity<T> keyEntity) {
+        KeyPrefix prefix = this.getKeyPrefix(keyEntity.getType());
+        byte[] typeIdBytes = String.valueOf(keyEntity.getTypeId()).getBytes(StandardCharsets.UTF_8);
 
-        if (types == null || !types.contains(keyEntity.getType())) {
-            throw new BizException(String.format("这个分布式key没有注册: %s-%s", keyEntity.getType().getType(), keyEntity.getType().getSubType()));
+        byte[] result = Arrays.copyOf(prefix.getBytes(), prefix.getBytes().length + typeIdBytes.length);
+        System.arraycopy(typeIdBytes, 0, result, prefix.getBytes().length, typeIdBytes.length);
+
+        return result;
+    }
+
+    private KeyPrefix getKeyPrefix(KeyType type) {
+        KeyPrefix prefix = this.prefixMap.get(type);
+
+        if (prefix == null || prefix.getClazz() != type.getClass()) {
+            throw new BizException(String.format("这个分布式key没有注册: %s-%s", type.getType(), type.getSubType()));
         }
 
-        return String.format("%s:%s-%s:%s", this.scope, keyEntity.getType().getType(), keyEntity.getType().getSubType(), keyEntity.getTypeId());
+        return prefix;
+    }
+
+    @Getter
+    private static class KeyPrefix {
+        private Class<? extends KeyType> clazz;
+
+        private String value;
+
+        private byte[] bytes;
+
+        public static KeyPrefix of(Class<? extends KeyType> clazz, String scope, KeyType type) {
+            KeyPrefix data = new KeyPrefix();
+
+            data.clazz = clazz;
+            data.value = String.format("%s:%s-%s:", scope, type.getType(), type.getSubType());
+            data.bytes = data.value.getBytes(StandardCharsets.UTF_8);
+
+            return data;
+        }
     }
 
     @Setter
@@ -0,0 +1,77 @@
+package io.github.chaogeoop.base.business.redis;
+
+import io.github.chaogeoop.base.business.common.helpers.JsonHelper;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ThreadLocalRandom;
+
+//XFetch概率提前刷新: 缓存值旁边保存计算耗时和过期时间,越接近过期越可能被读者提前重算
+//now - delta * beta * ln(rand) >= expiry 时刷新,beta越大越早刷新
+public class EarlyRefresh {
+    @Setter
+    @Getter
+    public static class Config {
+        private double beta = 1.0;
+
+        //true时提前刷新交给线程池异步执行,读者直接返回旧值
+        private boolean async = true;
+
+        public static Config of(double beta, boolean async) {
+            Config data = new Config();
+
+            data.setBeta(beta);
+            data.setAsync(async);
+
+            return data;
+        }
+    }
+
+    @Setter
+    @Getter
+    @JsonPropertyOrder({"v", "d", "e"})
+    public static class Envelope {
+        private String v;
+
+        private long d;
+
+        private long e;
+
+        public static Envelope of(String value, long delta, long expireAt) {
+            Envelope data = new Envelope();
+
+            data.setV(value);
+            data.setD(delta);
+            data.setE(expireAt);
+
+            return data;
+        }
+
+        //开启前写入的旧值不是envelope,返回null
+        @Nullable
+        public static Envelope parse(@Nullable Object raw) {
+            if (!(raw instanceof String)) {
+                return null;
+            }
+
+            try {
+                Envelope envelope = JsonHelper.readValue((String) raw, Envelope.class);
+                if (envelope == null || envelope.getV() == null || envelope.getE() <= 0) {
+                    return null;
+                }
+
+                return envelope;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        public boolean shouldRefresh(double beta) {
+            double random = 1 - ThreadLocalRandom.current().nextDouble();
+
+            return System.currentTimeMillis() - this.d * beta * Math.log(random) >= this.e;
+        }
+    }
+}
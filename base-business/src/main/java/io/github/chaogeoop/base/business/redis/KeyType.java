@@ -1,16 +1,39 @@
 package io.github.chaogeoop.base.business.redis;
 
+import io.github.chaogeoop.base.business.common.errors.BizException;
 import com.google.common.base.Objects;
 import lombok.Getter;
-import lombok.Setter;
 
-@Setter
-@Getter
+//注册后不能再修改: DistributedKeyProvider按注册时的值缓存了key前缀,并以KeyType作为map的key
 public abstract class KeyType {
+    @Getter
     private String type;
 
+    @Getter
     private String subType;
 
+    private volatile boolean frozen = false;
+
+    public void setType(String type) {
+        this.checkNotFrozen();
+        this.type = type;
+    }
+
+    public void setSubType(String subType) {
+        this.checkNotFrozen();
+        this.subType = subType;
+    }
+
+    void freeze() {
+        this.frozen = true;
+    }
+
+    private void checkNotFrozen() {
+        if (this.frozen) {
+            throw new BizException(String.format("已注册的KeyType不能修改: %s-%s", this.type, this.subType));
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,57 @@
+package io.github.chaogeoop.base.business.redis;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+//同一进程内同一个key的加锁者先在本地公平锁上排队,只有本地的获胜者去redis竞争
+//每个key一把锁,按引用计数回收,不同key之间不会互相阻塞
+class LocalLockTable {
+    private final ConcurrentHashMap<String, Entry> entryMap = new ConcurrentHashMap<>();
+
+    boolean tryLock(String key, long timeoutMillis) throws InterruptedException {
+        Entry entry = this.entryMap.compute(key, (k, v) -> {
+            if (v == null) {
+                v = new Entry();
+            }
+            v.refCount++;
+
+            return v;
+        });
+
+        boolean locked = false;
+        try {
+            locked = entry.lock.tryLock(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+        } finally {
+            if (!locked) {
+                this.release(key);
+            }
+        }
+
+        return locked;
+    }
+
+    void unlock(String key) {
+        Entry entry = this.entryMap.get(key);
+        if (entry == null) {
+            return;
+        }
+
+        entry.lock.unlock();
+        this.release(key);
+    }
+
+    private void release(String key) {
+        this.entryMap.computeIfPresent(key, (k, v) -> {
+            v.refCount--;
+
+            return v.refCount <= 0 ? null : v;
+        });
+    }
+
+    private static class Entry {
+        private final ReentrantLock lock = new ReentrantLock(true);
+
+        private int refCount = 0;
+    }
+}
@@ -0,0 +1,71 @@
+package io.github.chaogeoop.base.business.redis;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+//锁释放时由释放脚本publish被释放的key,等待这个key的调用者被立即唤醒
+//消息丢失时等待方仍会按退避时间重试,不影响正确性
+public class LockReleaseNotifier implements MessageListener {
+    private final String channel;
+    private final ConcurrentHashMap<String, Set<CompletableFuture<Void>>> waiterMap = new ConcurrentHashMap<>();
+
+    public LockReleaseNotifier(DistributedKeyProvider distributedKeyProvider, RedisMessageListenerContainer container) {
+        this.channel = String.format("%s:lock-release", distributedKeyProvider.getScope());
+
+        container.addMessageListener(this, new ChannelTopic(this.channel));
+    }
+
+    public String getChannel() {
+        return this.channel;
+    }
+
+    //要在尝试加锁之前注册,避免错过加锁失败和开始等待之间的释放通知
+    public CompletableFuture<Void> register(String key) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        this.waiterMap.compute(key, (k, v) -> {
+            if (v == null) {
+                v = ConcurrentHashMap.newKeySet();
+            }
+            v.add(future);
+
+            return v;
+        });
+
+        return future;
+    }
+
+    public void unregister(String key, @Nullable CompletableFuture<Void> future) {
+        if (future == null) {
+            return;
+        }
+
+        this.waiterMap.computeIfPresent(key, (k, v) -> {
+            v.remove(future);
+
+            return v.isEmpty() ? null : v;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, @Nullable byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+
+        Set<CompletableFuture<Void>> waiters = this.waiterMap.remove(key);
+        if (waiters == null) {
+            return;
+        }
+
+        for (CompletableFuture<Void> waiter : waiters) {
+            waiter.complete(null);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.chaogeoop.base.business.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+//持有锁期间每ttl/3续期一次,锁的值不是自己时停止续期,释放时停止并记录持有时长
+//续期用自己的调度线程,不和加锁重试共用,释放后的续期任务立即从队列移除
+@Slf4j
+public class LockWatchdog {
+    //返回续期成功的key数量
+    static final String COMPARE_THEN_PEXPIRE_LUA = "local count = 0  \n" +
+            "for i, key in ipairs(KEYS) do  \n" +
+            "    if redis.call(\"GET\", key) == ARGV[1] then  \n" +
+            "        redis.call(\"PEXPIRE\", key, ARGV[2])  \n" +
+            "        count = count + 1  \n" +
+            "    end  \n" +
+            "end  \n" +
+            "return count";
+
+    private final StrictRedisProvider strictRedisProvider;
+    private final RedisTemplate<String, Object> template;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    private final LongAdder heldCount = new LongAdder();
+    private final LongAdder totalHeldMillis = new LongAdder();
+    private final LongAccumulator maxHeldMillis = new LongAccumulator(Math::max, 0);
+    private final LongAdder renewCount = new LongAdder();
+    private final LongAdder lostCount = new LongAdder();
+
+    LockWatchdog(StrictRedisProvider strictRedisProvider, RedisTemplate<String, Object> template) {
+        this.strictRedisProvider = strictRedisProvider;
+        this.template = template;
+
+        this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "strict-redis-lock-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    Lease watch(List<String> keys, String lockValue, Duration ttl) {
+        Lease lease = new Lease(keys, lockValue);
+
+        long interval = Math.max(1, ttl.toMillis() / 3);
+        lease.setFuture(this.scheduler.scheduleAtFixedRate(
+                () -> this.renew(lease, ttl), interval, interval, TimeUnit.MILLISECONDS
+        ));
+
+        return lease;
+    }
+
+    void stop(Lease lease) {
+        lease.cancel();
+
+        long held = System.currentTimeMillis() - lease.startAt;
+        this.heldCount.increment();
+        this.totalHeldMillis.add(held);
+        this.maxHeldMillis.accumulate(held);
+    }
+
+    private void renew(Lease lease, Duration ttl) {
+        if (lease.isStopped()) {
+            return;
+        }
+
+        try {
+            RedisScript<Long> redisScript = this.strictRedisProvider.loadScript(COMPARE_THEN_PEXPIRE_LUA, Long.class);
+            Long result = this.template.execute(redisScript, lease.keys, lease.lockValue, ttl.toMillis());
+            if (result != null && result >= lease.keys.size()) {
+                this.renewCount.increment();
+                return;
+            }
+
+            this.lostCount.increment();
+            lease.cancel();
+            log.warn("lock lost before release: {}", lease.keys);
+        } catch (Exception e) {
+            //单次续期失败不停止,下一次还有机会在过期前续上
+            log.warn("lock renew failed: {}", lease.keys, e);
+        }
+    }
+
+    public long getHeldCount() {
+        return this.heldCount.sum();
+    }
+
+    public long getTotalHeldMillis() {
+        return this.totalHeldMillis.sum();
+    }
+
+    public long getMaxHeldMillis() {
+        return this.maxHeldMillis.get();
+    }
+
+    public long getRenewCount() {
+        return this.renewCount.sum();
+    }
+
+    public long getLostCount() {
+        return this.lostCount.sum();
+    }
+
+    static class Lease {
+        private final List<String> keys;
+        private final String lockValue;
+        private final long startAt = System.currentTimeMillis();
+
+        //第一次续期可能在future赋值之前执行,取消和赋值都在锁内,先取消的话赋值时直接取消
+        private ScheduledFuture<?> future;
+        private volatile boolean stopped = false;
+
+        private Lease(List<String> keys, String lockValue) {
+            this.keys = keys;
+            this.lockValue = lockValue;
+        }
+
+        private synchronized void setFuture(ScheduledFuture<?> future) {
+            if (this.stopped) {
+                future.cancel(false);
+                return;
+            }
+
+            this.future = future;
+        }
+
+        private synchronized void cancel() {
+            this.stopped = true;
+            if (this.future != null) {
+                this.future.cancel(false);
+            }
+        }
+
+        private boolean isStopped() {
+            return this.stopped;
+        }
+    }
+}
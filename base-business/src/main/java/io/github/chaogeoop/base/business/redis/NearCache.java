@@ -0,0 +1,138 @@
+package io.github.chaogeoop.base.business.redis;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//进程内一级缓存,只缓存配置过的KeyType,key为DistributedKeyProvider.getKey的完整key
+//caffeine默认使用W-TinyLFU做准入和淘汰
+//本进程通过StrictRedisProvider写入时会同步失效,配置了NearCacheInvalidationBus时其他进程的写入通过pub/sub失效,否则只能等ttl过期
+//读redis前先取key所在分段的版本,失效时版本加1,回填时版本变了就放弃,避免把失效前读到的旧值重新放进缓存
+public class NearCache {
+    private static final int VERSION_STRIPES = 1024;
+
+    private final Map<KeyType, Cache<String, Object>> cacheMap = new HashMap<>();
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    public NearCache(Map<? extends KeyType, Config> configMap) {
+        for (Map.Entry<? extends KeyType, Config> entry : configMap.entrySet()) {
+            Config config = entry.getValue();
+
+            Cache<String, Object> cache = Caffeine.newBuilder()
+                    .maximumSize(config.getMaxSize())
+                    .expireAfterWrite(config.getTtl())
+                    .build();
+
+            this.cacheMap.put(entry.getKey(), cache);
+        }
+    }
+
+    public boolean support(KeyType type) {
+        return this.cacheMap.containsKey(type);
+    }
+
+    @Nullable
+    public Object getIfPresent(KeyType type, String key) {
+        Cache<String, Object> cache = this.cacheMap.get(type);
+        if (cache == null) {
+            return null;
+        }
+
+        Object value = cache.getIfPresent(key);
+        if (value == null) {
+            this.missCount.increment();
+        } else {
+            this.hitCount.increment();
+        }
+
+        return value;
+    }
+
+    public Set<KeyType> giveTypes() {
+        return Collections.unmodifiableSet(this.cacheMap.keySet());
+    }
+
+    //要在读redis之前调用
+    public long giveVersion(String key) {
+        return this.versions.get(stripe(key));
+    }
+
+    public void put(KeyType type, String key, Object value, long version) {
+        Cache<String, Object> cache = this.cacheMap.get(type);
+        if (cache == null || value == null) {
+            return;
+        }
+
+        //compute持有key的锁,和invalidate的版本递增+删除不会交错
+        cache.asMap().compute(key, (k, old) -> this.versions.get(stripe(key)) == version ? value : old);
+    }
+
+    public void invalidate(KeyType type, String key) {
+        Cache<String, Object> cache = this.cacheMap.get(type);
+        if (cache == null) {
+            return;
+        }
+
+        this.versions.incrementAndGet(stripe(key));
+        cache.invalidate(key);
+    }
+
+    //其他节点广播过来的key不带KeyType,逐个缓存失效
+    public void invalidate(String key) {
+        this.versions.incrementAndGet(stripe(key));
+        for (Cache<String, Object> cache : this.cacheMap.values()) {
+            cache.invalidate(key);
+        }
+    }
+
+    public void invalidateAll() {
+        for (int i = 0; i < VERSION_STRIPES; i++) {
+            this.versions.incrementAndGet(i);
+        }
+        for (Cache<String, Object> cache : this.cacheMap.values()) {
+            cache.invalidateAll();
+        }
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % VERSION_STRIPES;
+    }
+
+    public long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    @Setter
+    @Getter
+    public static class Config {
+        private Duration ttl;
+
+        private long maxSize;
+
+        public static Config of(Duration ttl, long maxSize) {
+            Config data = new Config();
+
+            data.setTtl(ttl);
+            data.setMaxSize(maxSize);
+
+            return data;
+        }
+    }
+}
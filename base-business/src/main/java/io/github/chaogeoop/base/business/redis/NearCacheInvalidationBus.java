@@ -0,0 +1,218 @@
+package io.github.chaogeoop.base.business.redis;
+
+import io.github.chaogeoop.base.business.common.helpers.JsonHelper;
+import com.google.common.collect.Lists;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//通过redis pub/sub通知其他节点失效本地缓存
+//写入方在本节点立即失效,广播按窗口合并批量发送,其他节点最多晚一个窗口失效
+//只广播配置了本地缓存的KeyType;窗口内待发送的key超过上限时改为广播全部失效,内存有界
+@Slf4j
+public class NearCacheInvalidationBus implements MessageListener {
+    private static final int MAX_BATCH_KEYS = 500;
+    private static final int MAX_PENDING_KEYS = 10000;
+
+    private final RedisTemplate<String, Object> template;
+    private final RedisMessageListenerContainer container;
+    private final ChannelTopic topic;
+    private final byte[] channelBytes;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ScheduledExecutorService scheduler;
+
+    @Nullable
+    private final NearCache nearCache;
+    private final Set<KeyType> types;
+
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean pendingOverflow = new AtomicBoolean(false);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    public NearCacheInvalidationBus(
+            RedisTemplate<String, Object> template,
+            DistributedKeyProvider distributedKeyProvider,
+            NearCache nearCache,
+            RedisMessageListenerContainer container,
+            Duration batchInterval
+    ) {
+        this(template, distributedKeyProvider, nearCache, nearCache.giveTypes(), container, batchInterval);
+    }
+
+    //没有本地缓存的节点要指定其他节点缓存了哪些KeyType
+    public NearCacheInvalidationBus(
+            RedisTemplate<String, Object> template,
+            DistributedKeyProvider distributedKeyProvider,
+            @Nullable NearCache nearCache,
+            Set<? extends KeyType> types,
+            RedisMessageListenerContainer container,
+            Duration batchInterval
+    ) {
+        this.template = template;
+        this.nearCache = nearCache;
+        this.types = new HashSet<>(types);
+        this.container = container;
+
+        String channel = String.format("%s:near-cache-invalidate", distributedKeyProvider.getScope());
+        this.topic = new ChannelTopic(channel);
+        this.channelBytes = channel.getBytes(StandardCharsets.UTF_8);
+
+        //没有本地缓存的节点只负责广播
+        if (this.nearCache != null) {
+            this.container.addMessageListener(this, this.topic);
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "near-cache-invalidation-bus");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long intervalMillis = batchInterval.toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean support(KeyType type) {
+        return this.types.contains(type);
+    }
+
+    public void publish(String key) {
+        if (this.pendingOverflow.get()) {
+            return;
+        }
+
+        if (this.pendingKeys.size() >= MAX_PENDING_KEYS) {
+            this.pendingOverflow.set(true);
+            this.pendingKeys.clear();
+        } else {
+            this.pendingKeys.add(key);
+        }
+
+        if (this.pendingKeys.size() >= MAX_BATCH_KEYS || this.pendingOverflow.get()) {
+            if (this.flushScheduled.compareAndSet(false, true)) {
+                this.scheduler.execute(this::flushQuietly);
+            }
+        }
+    }
+
+    public synchronized void flush() {
+        this.flushScheduled.set(false);
+
+        boolean all = this.pendingOverflow.getAndSet(false);
+
+        List<String> keys = new ArrayList<>();
+        for (String key : new ArrayList<>(this.pendingKeys)) {
+            if (this.pendingKeys.remove(key)) {
+                keys.add(key);
+            }
+        }
+
+        if (all) {
+            this.send(InvalidateMessage.ofAll(this.nodeId));
+            return;
+        }
+
+        for (List<String> partition : Lists.partition(keys, MAX_BATCH_KEYS)) {
+            this.send(InvalidateMessage.of(this.nodeId, partition));
+        }
+    }
+
+    private void send(InvalidateMessage message) {
+        byte[] body = JsonHelper.writeValueAsString(message).getBytes(StandardCharsets.UTF_8);
+
+        this.template.execute((RedisCallback<Long>) connection -> connection.publish(this.channelBytes, body));
+    }
+
+    @Override
+    public void onMessage(Message message, @Nullable byte[] pattern) {
+        if (this.nearCache == null) {
+            return;
+        }
+
+        InvalidateMessage data = JsonHelper.readValue(new String(message.getBody(), StandardCharsets.UTF_8), InvalidateMessage.class);
+        if (data == null || this.nodeId.equals(data.getNodeId())) {
+            return;
+        }
+
+        if (data.isAll()) {
+            this.nearCache.invalidateAll();
+            return;
+        }
+
+        for (String key : data.getKeys()) {
+            this.nearCache.invalidate(key);
+        }
+    }
+
+    public void shutdown() {
+        if (this.nearCache != null) {
+            this.container.removeMessageListener(this, this.topic);
+        }
+
+        this.scheduler.shutdown();
+
+        try {
+            this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            this.flush();
+        } catch (Exception e) {
+            log.error("nearCacheInvalidationBus flush error", e);
+        }
+    }
+
+    @Setter
+    @Getter
+    public static class InvalidateMessage {
+        private String nodeId;
+
+        private List<String> keys = new ArrayList<>();
+
+        private boolean all;
+
+        public static InvalidateMessage of(String nodeId, List<String> keys) {
+            InvalidateMessage data = new InvalidateMessage();
+
+            data.setNodeId(nodeId);
+            data.setKeys(keys);
+
+            return data;
+        }
+
+        public static InvalidateMessage ofAll(String nodeId) {
+            InvalidateMessage data = new InvalidateMessage();
+
+            data.setNodeId(nodeId);
+            data.setAll(true);
+
+            return data;
+        }
+    }
+}
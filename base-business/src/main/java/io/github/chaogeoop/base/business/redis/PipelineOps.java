@@ -0,0 +1,324 @@
+package io.github.chaogeoop.base.business.redis;
+
+import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.common.helpers.CollectionHelper;
+import io.github.chaogeoop.base.business.common.helpers.JsonHelper;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+//收集多个独立命令,由StrictRedisProvider.pipeline一次发送
+//set/hmset都用返回非status的命令实现,保证pipeline结果与命令一一对应
+public class PipelineOps {
+    static final String SET_LUA = "local ttl = tonumber(ARGV[2]) \n" +
+            "if ttl > 0 then  \n" +
+            "    redis.call(\"SET\", KEYS[1], ARGV[1], \"PX\", ttl)  \n" +
+            "else  \n" +
+            "    redis.call(\"SET\", KEYS[1], ARGV[1])  \n" +
+            "end  \n" +
+            "return 1";
+
+    private final StrictRedisProvider strictRedisProvider;
+    private final RedisTemplate<String, Object> template;
+    private final DistributedKeyProvider distributedKeyProvider;
+
+    private final List<Op<?>> ops = new ArrayList<>();
+    private final List<KeyEntity<? extends KeyType>> keyEntities = new ArrayList<>();
+    private final List<KeyEntity<? extends KeyType>> writeKeyEntities = new ArrayList<>();
+
+    PipelineOps(StrictRedisProvider strictRedisProvider, RedisTemplate<String, Object> template) {
+        this.strictRedisProvider = strictRedisProvider;
+        this.template = template;
+        this.distributedKeyProvider = strictRedisProvider.getDistributedKeyProvider();
+    }
+
+    public <T> Handle<T> get(KeyEntity<? extends KeyType> keyEntity, Class<T> clazz) {
+        byte[] key = this.rawKey(keyEntity, false);
+
+        return this.add(1, connection -> connection.stringCommands().get(key), results -> JsonHelper.convert(results.get(0), clazz));
+    }
+
+    public Handle<Void> set(KeyEntity<? extends KeyType> keyEntity, StrictRedisProvider.AcceptType type, @Nullable Duration duration) {
+        long ttl = duration == null ? 0 : duration.toMillis();
+
+        return this.executeLua(
+                this.strictRedisProvider.loadScript(SET_LUA, Long.class),
+                Collections.singletonList(keyEntity),
+                new Object[]{type.getValue(), ttl},
+                result -> null
+        );
+    }
+
+    public Handle<Long> incrBy(KeyEntity<? extends KeyType> keyEntity, long increment) {
+        byte[] key = this.rawKey(keyEntity, true);
+
+        return this.add(1, connection -> connection.stringCommands().incrBy(key, increment), results -> (Long) results.get(0));
+    }
+
+    public Handle<Void> hmset(KeyEntity<? extends KeyType> keyEntity, Map<String, StrictRedisProvider.AcceptType> map) {
+        byte[] key = this.rawKey(keyEntity, true);
+
+        Map<byte[], byte[]> fieldValueMap = new LinkedHashMap<>(map.size());
+        for (Map.Entry<String, StrictRedisProvider.AcceptType> entry : map.entrySet()) {
+            fieldValueMap.put(this.rawHashKey(entry.getKey()), this.rawValue(entry.getValue().getValue()));
+        }
+
+        return this.add(fieldValueMap.size(), connection -> {
+            for (Map.Entry<byte[], byte[]> entry : fieldValueMap.entrySet()) {
+                connection.hashCommands().hSet(key, entry.getKey(), entry.getValue());
+            }
+        }, results -> null);
+    }
+
+    public Handle<Long> hdel(KeyEntity<? extends KeyType> keyEntity, Set<String> fields) {
+        byte[] key = this.rawKey(keyEntity, true);
+        byte[][] rawFields = fields.stream().map(this::rawHashKey).toArray(byte[][]::new);
+
+        return this.add(1, connection -> connection.hashCommands().hDel(key, rawFields), results -> (Long) results.get(0));
+    }
+
+    public Handle<Long> delete(KeyEntity<? extends KeyType> keyEntity) {
+        byte[] key = this.rawKey(keyEntity, true);
+
+        return this.add(1, connection -> connection.keyCommands().del(key), results -> (Long) results.get(0));
+    }
+
+    public Handle<Boolean> expire(KeyEntity<? extends KeyType> keyEntity, Duration duration) {
+        byte[] key = this.rawKey(keyEntity, false);
+
+        return this.add(1, connection -> connection.keyCommands().pExpire(key, duration.toMillis()), results -> (Boolean) results.get(0));
+    }
+
+    public <T> Handle<T> executeLua(DefaultRedisScript<T> redisScript, List<KeyEntity<? extends KeyType>> keyEntities, Object[] args) {
+        return this.executeLua(redisScript, keyEntities, args, result -> (T) result);
+    }
+
+    private <T, R> Handle<R> executeLua(
+            DefaultRedisScript<T> redisScript, List<KeyEntity<? extends KeyType>> keyEntities, Object[] args, Function<Object, R> converter
+    ) {
+        byte[][] keysAndArgs = new byte[keyEntities.size() + args.length][];
+        for (int i = 0; i < keyEntities.size(); i++) {
+            keysAndArgs[i] = this.rawKey(keyEntities.get(i), true);
+        }
+        for (int i = 0; i < args.length; i++) {
+            keysAndArgs[keyEntities.size() + i] = this.rawValue(args[i]);
+        }
+
+        ReturnType returnType = ReturnType.fromJavaType(redisScript.getResultType());
+        String sha = redisScript.getSha1();
+        int numKeys = keyEntities.size();
+
+        Op<R> op = this.addOp(1, connection -> connection.scriptingCommands().evalSha(sha, returnType, numKeys, keysAndArgs), results -> converter.apply(results.get(0)));
+
+        //NOSCRIPT时在pipeline之外重新执行一次,spring会回退为EVAL并重新载入脚本
+        op.scriptRetry = () -> converter.apply(this.template.execute(
+                redisScript,
+                CollectionHelper.map(keyEntities, this.distributedKeyProvider::getKey),
+                args
+        ));
+
+        return op.handle;
+    }
+
+    List<KeyEntity<? extends KeyType>> giveKeyEntities() {
+        return this.keyEntities;
+    }
+
+    List<KeyEntity<? extends KeyType>> giveWriteKeyEntities() {
+        return this.writeKeyEntities;
+    }
+
+    //返回第一个失败命令的异常,全部成功返回null
+    RuntimeException execute() {
+        if (this.ops.isEmpty()) {
+            return null;
+        }
+
+        List<Object> results;
+        try {
+            results = this.template.executePipelined((RedisCallback<Object>) connection -> {
+                for (Op<?> op : this.ops) {
+                    op.command.accept(connection);
+                }
+
+                return null;
+            });
+        } catch (RedisPipelineException e) {
+            //异常时拿到的是未反序列化的原始结果,按成功时的方式转换后再交给各个命令
+            results = CollectionHelper.map(e.getPipelineResult(), this::deserializeResult);
+        }
+
+        int commandCount = 0;
+        for (Op<?> op : this.ops) {
+            commandCount += op.size;
+        }
+        if (results.size() != commandCount) {
+            throw new BizException(String.format("pipeline结果数量不一致: %s-%s", commandCount, results.size()));
+        }
+
+        RuntimeException firstError = null;
+        int index = 0;
+        for (Op<?> op : this.ops) {
+            List<Object> opResults = results.subList(index, index + op.size);
+            index += op.size;
+
+            RuntimeException error = op.complete(opResults);
+            if (error != null && firstError == null) {
+                firstError = error;
+            }
+        }
+
+        return firstError;
+    }
+
+    private Object deserializeResult(Object result) {
+        if (result instanceof byte[]) {
+            return this.template.getValueSerializer().deserialize((byte[]) result);
+        }
+
+        if (result instanceof List) {
+            return CollectionHelper.map((List<?>) result, this::deserializeResult);
+        }
+
+        return result;
+    }
+
+    private <T> Handle<T> add(int size, Consumer<RedisConnection> command, Function<List<Object>, T> converter) {
+        return this.addOp(size, command, converter).handle;
+    }
+
+    private <T> Op<T> addOp(int size, Consumer<RedisConnection> command, Function<List<Object>, T> converter) {
+        Op<T> op = new Op<>(size, command, converter);
+        this.ops.add(op);
+
+        return op;
+    }
+
+    private byte[] rawKey(KeyEntity<? extends KeyType> keyEntity, boolean write) {
+        this.keyEntities.add(keyEntity);
+        if (write) {
+            this.writeKeyEntities.add(keyEntity);
+        }
+
+        return this.strictRedisProvider.rawKey(keyEntity);
+    }
+
+    private byte[] rawHashKey(String field) {
+        return ((RedisSerializer<String>) this.template.getHashKeySerializer()).serialize(field);
+    }
+
+    private byte[] rawValue(Object value) {
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        }
+
+        return ((RedisSerializer<Object>) this.template.getValueSerializer()).serialize(value);
+    }
+
+    private static class Op<T> {
+        private final int size;
+        private final Consumer<RedisConnection> command;
+        private final Function<List<Object>, T> converter;
+        private final Handle<T> handle = new Handle<>();
+
+        @Nullable
+        private Supplier<T> scriptRetry;
+
+        private Op(int size, Consumer<RedisConnection> command, Function<List<Object>, T> converter) {
+            this.size = size;
+            this.command = command;
+            this.converter = converter;
+        }
+
+        private RuntimeException complete(List<Object> results) {
+            for (Object result : results) {
+                if (!(result instanceof Exception)) {
+                    continue;
+                }
+
+                if (this.scriptRetry != null && isNoScript((Exception) result)) {
+                    try {
+                        this.handle.success(this.scriptRetry.get());
+                        return null;
+                    } catch (RuntimeException e) {
+                        this.handle.fail(e);
+                        return e;
+                    }
+                }
+
+                RuntimeException error = result instanceof RuntimeException ?
+                        (RuntimeException) result : new BizException((Exception) result);
+                this.handle.fail(error);
+
+                return error;
+            }
+
+            try {
+                this.handle.success(this.converter.apply(results));
+                return null;
+            } catch (RuntimeException e) {
+                this.handle.fail(e);
+                return e;
+            }
+        }
+
+        private static boolean isNoScript(Exception e) {
+            Throwable current = e;
+            while (current != null) {
+                if (current.getMessage() != null && current.getMessage().contains("NOSCRIPT")) {
+                    return true;
+                }
+                current = current.getCause();
+            }
+
+            return false;
+        }
+    }
+
+    public static class Handle<T> {
+        private boolean done = false;
+        private T value;
+        private RuntimeException error;
+
+        private void success(T value) {
+            this.value = value;
+            this.done = true;
+        }
+
+        private void fail(RuntimeException error) {
+            this.error = error;
+            this.done = true;
+        }
+
+        public boolean isDone() {
+            return this.done;
+        }
+
+        public boolean isSuccess() {
+            return this.done && this.error == null;
+        }
+
+        public T get() {
+            if (!this.done) {
+                throw new BizException("pipeline还未执行");
+            }
+
+            if (this.error != null) {
+                throw this.error;
+            }
+
+            return this.value;
+        }
+    }
+}
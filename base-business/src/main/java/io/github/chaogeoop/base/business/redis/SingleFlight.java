@@ -0,0 +1,132 @@
+package io.github.chaogeoop.base.business.redis;
+
+import io.github.chaogeoop.base.business.common.errors.BizException;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+//同一个key同时只有一个调用者执行加载,其余调用者等待并共享同一个结果(同一个对象实例)
+//结果会被多个调用方同时持有,只应合并不可变的值(如json字符串),由调用方各自反序列化
+public class SingleFlight {
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> flightMap = new ConcurrentHashMap<>();
+
+    private final LongAdder loadCount = new LongAdder();
+    private final LongAdder savedCount = new LongAdder();
+    private final LongAdder remoteSavedCount = new LongAdder();
+
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+
+        CompletableFuture<Object> exist = this.flightMap.putIfAbsent(key, future);
+        if (exist != null) {
+            this.savedCount.increment();
+
+            return (T) this.join(exist);
+        }
+
+        this.loadCount.increment();
+        try {
+            T value = loader.get();
+            future.complete(value);
+
+            return value;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+
+            throw e;
+        } finally {
+            this.flightMap.remove(key, future);
+        }
+    }
+
+    //按id逐个去重,只加载没有其他调用者在加载的id,其余id等待对应的结果
+    public <K, V> Map<K, V> executeMulti(List<K> ids, Function<K, String> keyConverter, Function<List<K>, Map<K, V>> loader) {
+        Map<K, V> result = new HashMap<>(ids.size());
+        if (ids.isEmpty()) {
+            return result;
+        }
+
+        Map<K, CompletableFuture<Object>> ownMap = new LinkedHashMap<>();
+        Map<K, CompletableFuture<Object>> waitMap = new HashMap<>();
+        Map<K, String> idKeyMap = new HashMap<>(ids.size());
+
+        for (K id : ids) {
+            String key = keyConverter.apply(id);
+            idKeyMap.put(id, key);
+
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            CompletableFuture<Object> exist = this.flightMap.putIfAbsent(key, future);
+            if (exist != null) {
+                waitMap.put(id, exist);
+                continue;
+            }
+
+            ownMap.put(id, future);
+        }
+
+        if (!ownMap.isEmpty()) {
+            this.loadCount.add(ownMap.size());
+            try {
+                Map<K, V> loaded = loader.apply(new ArrayList<>(ownMap.keySet()));
+                result.putAll(loaded);
+
+                for (Map.Entry<K, CompletableFuture<Object>> entry : ownMap.entrySet()) {
+                    entry.getValue().complete(loaded.get(entry.getKey()));
+                }
+            } catch (Exception e) {
+                for (CompletableFuture<Object> future : ownMap.values()) {
+                    future.completeExceptionally(e);
+                }
+
+                throw e;
+            } finally {
+                for (Map.Entry<K, CompletableFuture<Object>> entry : ownMap.entrySet()) {
+                    this.flightMap.remove(idKeyMap.get(entry.getKey()), entry.getValue());
+                }
+            }
+        }
+
+        this.savedCount.add(waitMap.size());
+        for (Map.Entry<K, CompletableFuture<Object>> entry : waitMap.entrySet()) {
+            V value = (V) this.join(entry.getValue());
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+
+        return result;
+    }
+
+    public void recordRemoteSaved() {
+        this.remoteSavedCount.increment();
+    }
+
+    public long getLoadCount() {
+        return this.loadCount.sum();
+    }
+
+    public long getSavedCount() {
+        return this.savedCount.sum();
+    }
+
+    public long getRemoteSavedCount() {
+        return this.remoteSavedCount.sum();
+    }
+
+    private Object join(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new BizException(e);
+        }
+    }
+}
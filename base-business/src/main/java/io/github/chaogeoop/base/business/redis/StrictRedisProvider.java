@@ -5,24 +5,82 @@ import io.github.chaogeoop.base.business.common.errors.DistributedLockedExceptio
 import io.github.chaogeoop.base.business.common.helpers.CollectionHelper;
 import io.github.chaogeoop.base.business.common.helpers.JsonHelper;
 import io.github.chaogeoop.base.business.common.helpers.SleepHelper;
+import io.github.chaogeoop.base.business.redis.codec.RedisValueCodec;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.collect.Lists;
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
 import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 
+import javax.annotation.Nullable;
 import javax.lang.model.type.NullType;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+@Slf4j
 public class StrictRedisProvider {
     private final RedisTemplate<String, Object> template;
     private final DistributedKeyProvider distributedKeyProvider;
 
+    private final ConcurrentHashMap<String, DefaultRedisScript<?>> scriptMap = new ConcurrentHashMap<>();
+
+    //key序列化器按utf-8编码时直接使用DistributedKeyProvider预先编码好的前缀
+    private final boolean utf8KeySerializer;
+
+    @Nullable
+    private NearCache nearCache;
+
+    @Nullable
+    private NearCacheInvalidationBus nearCacheInvalidationBus;
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    //不为空时缓存未命中的加载先抢一个redis租约,只有一个节点回源,其余节点等待缓存被写入
+    @Nullable
+    private Duration cacheLoadLease;
+
+    private final Map<KeyType, EarlyRefresh.Config> earlyRefreshConfigMap = new HashMap<>();
+    private final Set<String> earlyRefreshingKeys = ConcurrentHashMap.newKeySet();
+    @Nullable
+    private Executor earlyRefreshExecutor;
+
+    private final Map<KeyType, RedisValueCodec> valueCodecMap = new HashMap<>();
+
+    @Nullable
+    private LockReleaseNotifier lockReleaseNotifier;
+
+    //只负责计时,到期后把加锁交给lockExecutor,不在计时线程上访问redis
+    private final ScheduledThreadPoolExecutor lockScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "strict-redis-lock");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ExecutorService lockExecutor = Executors.newFixedThreadPool(4, r -> {
+        Thread thread = new Thread(r, "strict-redis-lock-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LockWatchdog lockWatchdog;
+
+    //同步加锁先在本地按key排队,异步加锁不占线程所以不经过这里
+    private final LocalLockTable localLockTable = new LocalLockTable();
+
     private static final String COMPARE_THEN_DEL_LUA = "if redis.call(\"get\",KEYS[1]) == ARGV[1] " +
             "then " +
             "    return redis.call(\"del\",KEYS[1]) " +
@@ -30,6 +88,50 @@ public class StrictRedisProvider {
             "    return 0 " +
             "end ";
 
+    private static final String COMPARE_THEN_DEL_PUBLISH_LUA = "if redis.call(\"get\",KEYS[1]) == ARGV[1] " +
+            "then " +
+            "    redis.call(\"del\",KEYS[1]) " +
+            "    redis.call(\"publish\",KEYS[2],KEYS[1]) " +
+            "    return 1 " +
+            "else " +
+            "    return 0 " +
+            "end ";
+
+    //KEYS已排序,有一个被占用就返回它的序号,全部空闲才一起加锁
+    private static final String MULTI_LOCK_LUA = "for i, key in ipairs(KEYS) do  \n" +
+            "    if redis.call(\"EXISTS\", key) == 1 then  \n" +
+            "        return i  \n" +
+            "    end  \n" +
+            "end  \n" +
+            "for i, key in ipairs(KEYS) do  \n" +
+            "    redis.call(\"SET\", key, ARGV[1], \"PX\", ARGV[2])  \n" +
+            "end  \n" +
+            "return 0";
+
+    private static final String MULTI_COMPARE_THEN_DEL_LUA = "local count = 0  \n" +
+            "for i, key in ipairs(KEYS) do  \n" +
+            "    if redis.call(\"GET\", key) == ARGV[1] then  \n" +
+            "        redis.call(\"DEL\", key)  \n" +
+            "        count = count + 1  \n" +
+            "    end  \n" +
+            "end  \n" +
+            "return count";
+
+    //最后一个KEYS是通知channel
+    private static final String MULTI_COMPARE_THEN_DEL_PUBLISH_LUA = "local count = 0  \n" +
+            "local channel = KEYS[#KEYS]  \n" +
+            "for i = 1, #KEYS - 1 do  \n" +
+            "    if redis.call(\"GET\", KEYS[i]) == ARGV[1] then  \n" +
+            "        redis.call(\"DEL\", KEYS[i])  \n" +
+            "        redis.call(\"PUBLISH\", channel, KEYS[i])  \n" +
+            "        count = count + 1  \n" +
+            "    end  \n" +
+            "end  \n" +
+            "return count";
+
+    private static final long LOCK_RETRY_INTERVAL_MILLIS = 200;
+    private static final long LOCK_MIN_BACKOFF_MILLIS = 5;
+
     private static final String MULTI_SET_EXPIRE = "local ttl = tonumber(ARGV[#ARGV]) \n" +
             "for i, key in ipairs(KEYS) do  \n" +
             "    redis.call(\"SETEX\", key, ttl, ARGV[i])  \n" +
@@ -54,16 +156,153 @@ public class StrictRedisProvider {
     public StrictRedisProvider(RedisTemplate<String, Object> template, DistributedKeyProvider distributedKeyProvider) {
         this.template = template;
         this.distributedKeyProvider = distributedKeyProvider;
+
+        RedisSerializer<?> keySerializer = template.getKeySerializer();
+        this.utf8KeySerializer = keySerializer instanceof StringRedisSerializer &&
+                Arrays.equals(((StringRedisSerializer) keySerializer).serialize("键"), "键".getBytes(StandardCharsets.UTF_8));
+
+        this.lockScheduler.setRemoveOnCancelPolicy(true);
+        this.lockWatchdog = new LockWatchdog(this, template);
+
+        this.loadScript(COMPARE_THEN_DEL_LUA, Long.class);
+        this.loadScript(COMPARE_THEN_DEL_PUBLISH_LUA, Long.class);
+        this.loadScript(MULTI_LOCK_LUA, Long.class);
+        this.loadScript(MULTI_COMPARE_THEN_DEL_LUA, Long.class);
+        this.loadScript(MULTI_COMPARE_THEN_DEL_PUBLISH_LUA, Long.class);
+        this.loadScript(MULTI_SET_EXPIRE, Long.class);
+        this.loadScript(MULTI_ABSENT_SET_EXPIRE, Long.class);
+        this.loadScript(ABSENT_HMSET, Long.class);
+        this.loadScript(PipelineOps.SET_LUA, Long.class);
+        this.loadScript(LockWatchdog.COMPARE_THEN_PEXPIRE_LUA, Long.class);
     }
 
     public DistributedKeyProvider getDistributedKeyProvider() {
         return this.distributedKeyProvider;
     }
 
+    public LockWatchdog getLockWatchdog() {
+        return this.lockWatchdog;
+    }
+
+    @Nullable
+    public NearCache getNearCache() {
+        return this.nearCache;
+    }
+
+    public void setNearCache(@Nullable NearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    public void setNearCacheInvalidationBus(@Nullable NearCacheInvalidationBus nearCacheInvalidationBus) {
+        this.nearCacheInvalidationBus = nearCacheInvalidationBus;
+    }
+
+    public SingleFlight getSingleFlight() {
+        return this.singleFlight;
+    }
+
+    public void setCacheLoadLease(@Nullable Duration cacheLoadLease) {
+        this.cacheLoadLease = cacheLoadLease;
+    }
+
+    //设置后锁释放会publish通知,等待方收到通知立即重试,不再固定间隔轮询
+    public void setLockReleaseNotifier(@Nullable LockReleaseNotifier lockReleaseNotifier) {
+        this.lockReleaseNotifier = lockReleaseNotifier;
+    }
+
+    //配置了codec的KeyType只能通过get/set和缓存方法读写,incrBy/multiGet/hash等操作会抛BizException
+    public void setValueCodecs(Map<? extends KeyType, RedisValueCodec> codecMap) {
+        this.valueCodecMap.clear();
+        this.valueCodecMap.putAll(codecMap);
+    }
+
+    //只对配置的KeyType生效,executor为空时异步配置也会退化为同步刷新
+    public void setEarlyRefresh(Map<? extends KeyType, EarlyRefresh.Config> configMap, @Nullable Executor executor) {
+        this.earlyRefreshConfigMap.clear();
+        this.earlyRefreshConfigMap.putAll(configMap);
+        this.earlyRefreshExecutor = executor;
+    }
+
+    //脚本只创建一次并预先SCRIPT LOAD,执行时走EVALSHA,不再每次发送脚本内容
+    //redis重启或主从切换后脚本缓存丢失,EVALSHA收到NOSCRIPT时由spring回退为EVAL,脚本随之重新载入
+    public <T> DefaultRedisScript<T> loadScript(String lua, Class<T> resultType) {
+        DefaultRedisScript<?> script = this.scriptMap.computeIfAbsent(lua, o -> {
+            DefaultRedisScript<T> data = new DefaultRedisScript<>(o, resultType);
+            this.scriptLoad(data);
+
+            return data;
+        });
+
+        if (!resultType.equals(script.getResultType())) {
+            throw new BizException("同一个脚本注册了不同的返回类型");
+        }
+
+        return (DefaultRedisScript<T>) script;
+    }
+
+    //主动把已注册的脚本重新载入,避免切换后第一批请求都走一次NOSCRIPT
+    public void reloadScripts() {
+        for (DefaultRedisScript<?> script : this.scriptMap.values()) {
+            this.scriptLoad(script);
+        }
+    }
+
+    private void scriptLoad(DefaultRedisScript<?> script) {
+        try {
+            this.template.execute((RedisCallback<String>) connection ->
+                    connection.scriptingCommands().scriptLoad(script.getScriptAsString().getBytes(StandardCharsets.UTF_8))
+            );
+        } catch (Exception e) {
+            log.warn("redis script load fail: {}", script.getSha1(), e);
+        }
+    }
+
     public <T> T executeLua(DefaultRedisScript<T> redisScript, List<KeyEntity<? extends KeyType>> keyEntities, Object[] args) {
         List<String> keys = CollectionHelper.map(keyEntities, this.distributedKeyProvider::getKey);
 
-        return this.template.execute(redisScript, keys, args);
+        T result = this.template.execute(redisScript, keys, args);
+
+        for (int i = 0; i < keys.size(); i++) {
+            this.evictNearCache(keyEntities.get(i), keys.get(i));
+        }
+
+        return result;
+    }
+
+    //命令在consumer内只是入队,consumer返回后一次发送,任一命令失败时在所有handle赋值后抛出第一个异常
+    //不支持配置了codec的KeyType
+    public void pipeline(Consumer<PipelineOps> consumer) {
+        PipelineOps ops = new PipelineOps(this, this.template);
+        consumer.accept(ops);
+
+        this.checkNoCodec(ops.giveKeyEntities(), "pipeline");
+
+        RuntimeException error = ops.execute();
+
+        for (KeyEntity<? extends KeyType> keyEntity : ops.giveWriteKeyEntities()) {
+            this.evictNearCache(keyEntity, this.distributedKeyProvider.getKey(keyEntity));
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    //codec只作用于get/set和缓存方法,其他命令读写的值格式和codec不一致
+    private void checkNoCodec(KeyEntity<? extends KeyType> keyEntity, String operation) {
+        if (this.valueCodecMap.containsKey(keyEntity.getType())) {
+            throw new BizException(String.format("%s不支持配置了codec的类型: %s", operation, this.distributedKeyProvider.getKey(keyEntity)));
+        }
+    }
+
+    private void checkNoCodec(Collection<? extends KeyEntity<? extends KeyType>> keyEntities, String operation) {
+        if (this.valueCodecMap.isEmpty()) {
+            return;
+        }
+
+        for (KeyEntity<? extends KeyType> keyEntity : keyEntities) {
+            this.checkNoCodec(keyEntity, operation);
+        }
     }
 
     //common
@@ -73,7 +312,12 @@ public class StrictRedisProvider {
     }
 
     public boolean delete(KeyEntity<? extends KeyType> keyEntity) {
-        return Boolean.TRUE.equals(this.template.delete(this.distributedKeyProvider.getKey(keyEntity)));
+        String key = this.distributedKeyProvider.getKey(keyEntity);
+
+        boolean result = Boolean.TRUE.equals(this.template.delete(key));
+        this.evictNearCache(keyEntity, key);
+
+        return result;
     }
 
     public boolean exists(KeyEntity<? extends KeyType> keyEntity) {
@@ -81,12 +325,33 @@ public class StrictRedisProvider {
     }
 
     public Long delete(Set<KeyEntity<? extends KeyType>> keys) {
-        return this.template.delete(CollectionHelper.map(keys, this.distributedKeyProvider::getKey));
+        List<KeyEntity<? extends KeyType>> keyEntities = Lists.newArrayList(keys);
+        List<String> stringKeys = CollectionHelper.map(keyEntities, this.distributedKeyProvider::getKey);
+
+        Long result = this.template.delete(stringKeys);
+
+        for (int i = 0; i < stringKeys.size(); i++) {
+            this.evictNearCache(keyEntities.get(i), stringKeys.get(i));
+        }
+
+        return result;
     }
 
     //valueOperator
     public <T> T get(KeyEntity<? extends KeyType> keyEntity, Class<T> clazz) {
-        return this.get(this.distributedKeyProvider.getKey(keyEntity), clazz);
+        String key = this.distributedKeyProvider.getKey(keyEntity);
+
+        RedisValueCodec codec = this.valueCodecMap.get(keyEntity.getType());
+        if (codec == null) {
+            return this.get(key, clazz);
+        }
+
+        byte[] bytes = this.readBytes(key);
+        if (bytes == null) {
+            return null;
+        }
+
+        return codec.decode(bytes, clazz);
     }
 
     private <T> T get(String key, Class<T> clazz) {
@@ -99,38 +364,53 @@ public class StrictRedisProvider {
     }
 
     public void set(KeyEntity<? extends KeyType> keyEntity, AcceptType type, Duration duration) {
-        this.template.opsForValue().set(this.distributedKeyProvider.getKey(keyEntity), type.getValue(), duration);
+        String key = this.distributedKeyProvider.getKey(keyEntity);
+
+        this.writeValue(keyEntity.getType(), key, type.getValue(), duration, false);
+        this.evictNearCache(keyEntity, key);
     }
 
     public void set(KeyEntity<? extends KeyType> keyEntity, AcceptType type) {
-        this.template.opsForValue().set(this.distributedKeyProvider.getKey(keyEntity), type.getValue());
+        String key = this.distributedKeyProvider.getKey(keyEntity);
+
+        this.writeValue(keyEntity.getType(), key, type.getValue(), null, false);
+        this.evictNearCache(keyEntity, key);
     }
 
     public void multiSet(Map<KeyEntity<? extends KeyType>, AcceptType> map) {
+        this.checkNoCodec(map.keySet(), "multiSet");
+
         Map<String, Object> valueMap = new HashMap<>(map.size());
         for (Map.Entry<KeyEntity<? extends KeyType>, AcceptType> entry : map.entrySet()) {
             valueMap.put(this.distributedKeyProvider.getKey(entry.getKey()), entry.getValue().getValue());
         }
 
         this.template.opsForValue().multiSet(valueMap);
+        this.evictNearCache(map.keySet());
     }
 
     public void multiSetEx(Map<KeyEntity<? extends KeyType>, AcceptType> map, Duration duration) {
+        this.checkNoCodec(map.keySet(), "multiSetEx");
+
         Map<String, Object> valueMap = new HashMap<>(map.size());
         for (Map.Entry<KeyEntity<? extends KeyType>, AcceptType> entry : map.entrySet()) {
             valueMap.put(this.distributedKeyProvider.getKey(entry.getKey()), entry.getValue().getValue());
         }
 
         this.setExIntern(valueMap, duration);
+        this.evictNearCache(map.keySet());
     }
 
     public void multiSetNxEx(Map<KeyEntity<? extends KeyType>, AcceptType> map, Duration duration) {
+        this.checkNoCodec(map.keySet(), "multiSetNxEx");
+
         Map<String, Object> valueMap = new HashMap<>(map.size());
         for (Map.Entry<KeyEntity<? extends KeyType>, AcceptType> entry : map.entrySet()) {
             valueMap.put(this.distributedKeyProvider.getKey(entry.getKey()), entry.getValue().getValue());
         }
 
         this.setNxExIntern(valueMap, duration);
+        this.evictNearCache(map.keySet());
     }
 
     private void setExIntern(Map<String, Object> map, Duration duration) {
@@ -138,7 +418,7 @@ public class StrictRedisProvider {
             return;
         }
 
-        DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(MULTI_SET_EXPIRE, Long.class);
+        DefaultRedisScript<Long> redisScript = this.loadScript(MULTI_SET_EXPIRE, Long.class);
         this.setExWithLuaIntern(redisScript, map, duration);
     }
 
@@ -147,7 +427,7 @@ public class StrictRedisProvider {
             return;
         }
 
-        DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(MULTI_ABSENT_SET_EXPIRE, Long.class);
+        DefaultRedisScript<Long> redisScript = this.loadScript(MULTI_ABSENT_SET_EXPIRE, Long.class);
         this.setExWithLuaIntern(redisScript, map, duration);
     }
 
@@ -169,7 +449,12 @@ public class StrictRedisProvider {
 
 
     public long incrBy(KeyEntity<? extends KeyType> keyEntity, long increment) {
-        Long value = this.template.opsForValue().increment(this.distributedKeyProvider.getKey(keyEntity), increment);
+        this.checkNoCodec(keyEntity, "incrBy");
+
+        String key = this.distributedKeyProvider.getKey(keyEntity);
+
+        Long value = this.template.opsForValue().increment(key, increment);
+        this.evictNearCache(keyEntity, key);
         if (value == null) {
             throw new BizException("redis 返回错误");
         }
@@ -178,17 +463,27 @@ public class StrictRedisProvider {
     }
 
     public <T> List<T> multiGet(List<KeyEntity<? extends KeyType>> keyEntities, Class<T> clazz) {
+        this.checkNoCodec(keyEntities, "multiGet");
+
         List<String> keys = CollectionHelper.map(keyEntities, this.distributedKeyProvider::getKey);
 
         return this.multiGetIntern(keys, clazz);
     }
 
     private <T> List<T> multiGetIntern(List<String> keys, Class<T> clazz) {
+        return this.convertList(this.multiGetRawIntern(keys), clazz);
+    }
+
+    private List<Object> multiGetRawIntern(List<String> keys) {
         List<Object> values = this.template.opsForValue().multiGet(keys);
         if (values == null) {
             throw new BizException("redis 返回错误");
         }
 
+        return values;
+    }
+
+    private <T> List<T> convertList(List<Object> values, Class<T> clazz) {
         List<T> list = new ArrayList<>(values.size());
 
         for (Object value : values) {
@@ -203,8 +498,119 @@ public class StrictRedisProvider {
         return list;
     }
 
+    //计数类型的值是ascii整数,直接解析原始字节,不经过Jackson和装箱
+    public LongValues multiGetLongs(List<KeyEntity<? extends KeyType>> keyEntities) {
+        this.checkNoCodec(keyEntities, "multiGetLongs");
+
+        LongValues result = new LongValues(keyEntities.size());
+        if (keyEntities.isEmpty()) {
+            return result;
+        }
+
+        byte[][] rawKeys = new byte[keyEntities.size()][];
+        for (int i = 0; i < keyEntities.size(); i++) {
+            rawKeys[i] = this.rawKey(keyEntities.get(i));
+        }
+
+        List<byte[]> bytesList = this.template.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+        if (bytesList == null) {
+            throw new BizException("redis 返回错误");
+        }
+
+        for (int i = 0; i < bytesList.size(); i++) {
+            byte[] bytes = bytesList.get(i);
+            if (bytes == null) {
+                continue;
+            }
+
+            result.set(i, this.parseLong(bytes));
+        }
+
+        return result;
+    }
+
+    public long[] multiIncrBy(List<KeyEntity<? extends KeyType>> keyEntities, long[] increments) {
+        this.checkNoCodec(keyEntities, "multiIncrBy");
+
+        if (keyEntities.size() != increments.length) {
+            throw new BizException("keys和increments数量不一致");
+        }
+
+        long[] values = new long[increments.length];
+        if (keyEntities.isEmpty()) {
+            return values;
+        }
+
+        List<String> keys = CollectionHelper.map(keyEntities, this.distributedKeyProvider::getKey);
+
+        List<Object> results = this.template.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < keys.size(); i++) {
+                connection.stringCommands().incrBy(this.serializeKey(keys.get(i)), increments[i]);
+            }
+
+            return null;
+        });
+
+        for (int i = 0; i < keys.size(); i++) {
+            this.evictNearCache(keyEntities.get(i), keys.get(i));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            Object value = results.get(i);
+            if (!(value instanceof Number)) {
+                throw new BizException("redis 返回错误");
+            }
+
+            values[i] = ((Number) value).longValue();
+        }
+
+        return values;
+    }
+
+    //兼容被json序列化成字符串的数字,解析不了的交给Jackson
+    private long parseLong(byte[] bytes) {
+        int start = 0;
+        int end = bytes.length;
+        if (end - start >= 2 && bytes[start] == '"' && bytes[end - 1] == '"') {
+            start++;
+            end--;
+        }
+
+        boolean negative = start < end && bytes[start] == '-';
+        if (negative) {
+            start++;
+        }
+
+        if (start == end || end - start > 18) {
+            return this.parseLongWithJackson(bytes);
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b < '0' || b > '9') {
+                return this.parseLongWithJackson(bytes);
+            }
+
+            value = value * 10 + (b - '0');
+        }
+
+        return negative ? -value : value;
+    }
+
+    private long parseLongWithJackson(byte[] bytes) {
+        Long value = JsonHelper.convert(this.template.getValueSerializer().deserialize(bytes), Long.class);
+        if (value == null) {
+            throw new BizException("redis 返回错误");
+        }
+
+        return value;
+    }
+
     //setOperator
     public <T> T spop(KeyEntity<? extends KeyType> keyEntity, Class<T> clazz) {
+        this.checkNoCodec(keyEntity, "spop");
+
         Object value = this.template.opsForSet().pop(this.distributedKeyProvider.getKey(keyEntity));
         if (value == null) {
             return null;
@@ -214,6 +620,8 @@ public class StrictRedisProvider {
     }
 
     public <T> List<T> spop(KeyEntity<? extends KeyType> keyEntity, int count, Class<T> clazz) {
+        this.checkNoCodec(keyEntity, "spop");
+
         List<T> results = new ArrayList<>(count);
 
         List<Object> values = this.template.opsForSet().pop(this.distributedKeyProvider.getKey(keyEntity), count);
@@ -234,6 +642,8 @@ public class StrictRedisProvider {
     }
 
     public long sadd(KeyEntity<? extends KeyType> keyEntity, AcceptType type) {
+        this.checkNoCodec(keyEntity, "sadd");
+
         Long num = this.template.opsForSet().add(this.distributedKeyProvider.getKey(keyEntity), type.getValue());
         if (num == null) {
             throw new BizException("redis 返回错误");
@@ -243,6 +653,8 @@ public class StrictRedisProvider {
     }
 
     public long sadd(KeyEntity<? extends KeyType> keyEntity, List<AcceptType> types) {
+        this.checkNoCodec(keyEntity, "sadd");
+
         Long num = this.template.opsForSet().add(this.distributedKeyProvider.getKey(keyEntity), CollectionHelper.map(types, AcceptType::getValue).toArray());
         if (num == null) {
             throw new BizException("redis 返回错误");
@@ -252,6 +664,8 @@ public class StrictRedisProvider {
     }
 
     public Set<Object> smembers(KeyEntity<? extends KeyType> keyEntity) {
+        this.checkNoCodec(keyEntity, "smembers");
+
         Set<Object> members = this.template.opsForSet().members(this.distributedKeyProvider.getKey(keyEntity));
         if (members == null) {
             throw new BizException("redis 返回错误");
@@ -263,6 +677,8 @@ public class StrictRedisProvider {
 
     //hashOperator
     public <T> List<T> hmget(KeyEntity<? extends KeyType> keyEntity, List<String> fields, Class<T> clazz) {
+        this.checkNoCodec(keyEntity, "hmget");
+
         String key = this.distributedKeyProvider.getKey(keyEntity);
 
         return this.hmgetIntern(key, fields, clazz);
@@ -287,6 +703,8 @@ public class StrictRedisProvider {
     }
 
     public void hmset(KeyEntity<? extends KeyType> keyEntity, Map<String, AcceptType> map) {
+        this.checkNoCodec(keyEntity, "hmset");
+
         Map<String, Object> fieldValueMap = new HashMap<>(map.size());
 
         for (Map.Entry<String, AcceptType> entry : map.entrySet()) {
@@ -297,6 +715,8 @@ public class StrictRedisProvider {
     }
 
     public void hmsetNx(KeyEntity<? extends KeyType> keyEntity, Map<String, AcceptType> map) {
+        this.checkNoCodec(keyEntity, "hmsetNx");
+
         Map<String, Object> fieldValueMap = new HashMap<>(map.size());
 
         for (Map.Entry<String, AcceptType> entry : map.entrySet()) {
@@ -323,16 +743,25 @@ public class StrictRedisProvider {
             values[i] = entry.getValue();
         }
 
-        DefaultRedisScript<Long> redisScript = new DefaultRedisScript<>(ABSENT_HMSET, Long.class);
+        DefaultRedisScript<Long> redisScript = this.loadScript(ABSENT_HMSET, Long.class);
         this.template.execute(redisScript, fields, values);
     }
 
 
     public Long hdel(KeyEntity<? extends KeyType> keyEntity, Set<String> fields) {
-        return this.template.opsForHash().delete(this.distributedKeyProvider.getKey(keyEntity), fields.toArray());
+        this.checkNoCodec(keyEntity, "hdel");
+
+        String key = this.distributedKeyProvider.getKey(keyEntity);
+
+        Long result = this.template.opsForHash().delete(key, fields.toArray());
+        this.evictNearCache(keyEntity, key);
+
+        return result;
     }
 
     public <T> T hget(KeyEntity<? extends KeyType> keyEntity, String fields, Class<T> clazz) {
+        this.checkNoCodec(keyEntity, "hget");
+
         Object result = this.template.opsForHash().get(this.distributedKeyProvider.getKey(keyEntity), fields);
         if (result == null) {
             return null;
@@ -353,11 +782,179 @@ public class StrictRedisProvider {
     }
 
     private boolean releaseLock(String key, String lockValue) {
-        RedisScript<Long> redisScript = new DefaultRedisScript<>(COMPARE_THEN_DEL_LUA, Long.class);
-        Long result = this.template.execute(redisScript, Lists.newArrayList(key), lockValue);
+        Long result;
+        if (this.lockReleaseNotifier == null) {
+            RedisScript<Long> redisScript = this.loadScript(COMPARE_THEN_DEL_LUA, Long.class);
+            result = this.template.execute(redisScript, Lists.newArrayList(key), lockValue);
+        } else {
+            RedisScript<Long> redisScript = this.loadScript(COMPARE_THEN_DEL_PUBLISH_LUA, Long.class);
+            result = this.template.execute(redisScript, Lists.newArrayList(key, this.lockReleaseNotifier.getChannel()), lockValue);
+        }
+
         return result != null && result > 0;
     }
 
+    //返回null表示全部加锁成功,否则返回被占用的key
+    @Nullable
+    private String tryLocks(List<String> keys, String lockValue, Duration duration) {
+        if (keys.size() == 1) {
+            return this.lock(keys.get(0), lockValue, duration) ? null : keys.get(0);
+        }
+
+        RedisScript<Long> redisScript = this.loadScript(MULTI_LOCK_LUA, Long.class);
+        Long result = this.template.execute(redisScript, keys, lockValue, duration.toMillis());
+        if (result == null) {
+            return keys.get(0);
+        }
+        if (result == 0) {
+            return null;
+        }
+
+        return keys.get(result.intValue() - 1);
+    }
+
+    private void releaseLocks(List<String> keys, String lockValue) {
+        if (keys.size() == 1) {
+            this.releaseLock(keys.get(0), lockValue);
+            return;
+        }
+
+        if (this.lockReleaseNotifier == null) {
+            RedisScript<Long> redisScript = this.loadScript(MULTI_COMPARE_THEN_DEL_LUA, Long.class);
+            this.template.execute(redisScript, keys, lockValue);
+            return;
+        }
+
+        List<String> keysAndChannel = Lists.newArrayList(keys);
+        keysAndChannel.add(this.lockReleaseNotifier.getChannel());
+
+        RedisScript<Long> redisScript = this.loadScript(MULTI_COMPARE_THEN_DEL_PUBLISH_LUA, Long.class);
+        this.template.execute(redisScript, keysAndChannel, lockValue);
+    }
+
+    //keys已排序,按顺序加本地锁,失败时释放已经加上的
+    private void localLock(List<String> keys, long deadline) {
+        for (int i = 0; i < keys.size(); i++) {
+            boolean locked;
+            try {
+                locked = this.localLockTable.tryLock(keys.get(i), deadline - System.currentTimeMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                locked = false;
+            }
+
+            if (!locked) {
+                this.localUnlock(keys.subList(0, i));
+                throw new DistributedLockedException("cant get lock");
+            }
+        }
+    }
+
+    private void localUnlock(List<String> keys) {
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            this.localLockTable.unlock(keys.get(i));
+        }
+    }
+
+    //指数退避加随机抖动,上限为原来的固定重试间隔
+    private long lockBackoffMillis(int attempt) {
+        long cap = Math.min(LOCK_RETRY_INTERVAL_MILLIS, LOCK_MIN_BACKOFF_MILLIS << Math.min(attempt, 10));
+
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    private boolean acquireLocks(List<String> keys, String lockValue, Duration timeout, long deadline) {
+        //等待上一次被占用的key的释放通知
+        String waitKey = keys.get(0);
+
+        int attempt = 0;
+        while (true) {
+            String key = waitKey;
+            CompletableFuture<Void> released = this.lockReleaseNotifier == null ? null : this.lockReleaseNotifier.register(key);
+            try {
+                String lockedKey = this.tryLocks(keys, lockValue, timeout);
+                if (lockedKey == null) {
+                    return true;
+                }
+                waitKey = lockedKey;
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+
+                long backoff = Math.min(remaining, this.lockBackoffMillis(attempt++));
+                if (released == null) {
+                    SleepHelper.sleep(Duration.ofMillis(backoff));
+                    continue;
+                }
+
+                try {
+                    released.get(backoff, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    //通知可能丢失,按退避时间重试
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DistributedLockedException("cant get lock");
+                } catch (ExecutionException e) {
+                    throw new BizException(e);
+                }
+            } finally {
+                if (this.lockReleaseNotifier != null) {
+                    this.lockReleaseNotifier.unregister(key, released);
+                }
+            }
+        }
+    }
+
+    private void acquireLockAsync(
+            String key, String lockValue, Duration timeout, long deadline, int attempt, CompletableFuture<Boolean> result
+    ) {
+        CompletableFuture<Void> released = this.lockReleaseNotifier == null ? null : this.lockReleaseNotifier.register(key);
+
+        boolean locked;
+        try {
+            locked = this.lock(key, lockValue, timeout);
+        } catch (Exception e) {
+            this.unregisterLockWaiter(key, released);
+            result.completeExceptionally(e);
+            return;
+        }
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (locked || remaining <= 0) {
+            this.unregisterLockWaiter(key, released);
+            result.complete(locked);
+            return;
+        }
+
+        AtomicBoolean fired = new AtomicBoolean(false);
+        Runnable retry = () -> {
+            if (!fired.compareAndSet(false, true)) {
+                return;
+            }
+
+            this.unregisterLockWaiter(key, released);
+            this.lockExecutor.execute(() -> this.acquireLockAsync(key, lockValue, timeout, deadline, attempt + 1, result));
+        };
+
+        //先收到释放通知时取消定时重试,避免它留在调度队列里
+        long backoff = Math.min(remaining, this.lockBackoffMillis(attempt));
+        ScheduledFuture<?> scheduledRetry = this.lockScheduler.schedule(retry, backoff, TimeUnit.MILLISECONDS);
+        if (released != null) {
+            released.thenRun(() -> {
+                scheduledRetry.cancel(false);
+                retry.run();
+            });
+        }
+    }
+
+    private void unregisterLockWaiter(String key, @Nullable CompletableFuture<Void> released) {
+        if (this.lockReleaseNotifier != null) {
+            this.lockReleaseNotifier.unregister(key, released);
+        }
+    }
+
     public <T, M extends KeyType> T exeFuncWithLock(
             KeyEntity<M> keyEntity, Function<NullType, T> func
     ) {
@@ -367,48 +964,116 @@ public class StrictRedisProvider {
     public <T> T exeFuncWithLock(
             KeyEntity<? extends KeyType> keyEntity, Duration timeout, int maxRetry, Function<NullType, T> func
     ) {
-        String key = this.distributedKeyProvider.getKey(keyEntity);
-
-        int time = 0;
+        return this.exeFuncWithLocks(Collections.singletonList(keyEntity), timeout, maxRetry, func);
+    }
 
-        String lockValue = UUID.randomUUID().toString();
+    public <T> T exeFuncWithLocks(
+            Collection<? extends KeyEntity<? extends KeyType>> keyEntities, Function<NullType, T> func
+    ) {
+        return this.exeFuncWithLocks(keyEntities, Duration.ofSeconds(10), 10, func);
+    }
 
-        boolean acquiredLock = false;
-        do {
-            acquiredLock = this.lock(key, lockValue, timeout);
-            if (acquiredLock) {
-                break;
-            }
+    //按key排序后用一个脚本全部加锁,任意一个被占用就都不加,多个锁之间不会死锁
+    public <T> T exeFuncWithLocks(
+            Collection<? extends KeyEntity<? extends KeyType>> keyEntities, Duration timeout, int maxRetry, Function<NullType, T> func
+    ) {
+        Set<String> keySet = new TreeSet<>();
+        for (KeyEntity<? extends KeyType> keyEntity : keyEntities) {
+            keySet.add(this.distributedKeyProvider.getKey(keyEntity));
+        }
+        if (keySet.isEmpty()) {
+            return func.apply(null);
+        }
+        List<String> keys = Lists.newArrayList(keySet);
 
-            time++;
-            SleepHelper.sleep(Duration.ofMillis(200));
-        } while (time < maxRetry);
+        String lockValue = UUID.randomUUID().toString();
 
-        if (!acquiredLock) {
-            throw new DistributedLockedException("cant get lock");
-        }
+        //总等待时间与原来的maxRetry * 200ms一致,本地排队和redis竞争共用
+        long deadline = System.currentTimeMillis() + maxRetry * LOCK_RETRY_INTERVAL_MILLIS;
 
+        this.localLock(keys, deadline);
         try {
-            return func.apply(null);
-        } catch (Exception e) {
-            throw e;
+            boolean acquiredLock = this.acquireLocks(keys, lockValue, timeout, deadline);
+            if (!acquiredLock) {
+                throw new DistributedLockedException("cant get lock");
+            }
+
+            LockWatchdog.Lease lease = this.lockWatchdog.watch(keys, lockValue, timeout);
+            try {
+                return func.apply(null);
+            } catch (Exception e) {
+                throw e;
+            } finally {
+                this.lockWatchdog.stop(lease);
+                this.releaseLocks(keys, lockValue);
+            }
         } finally {
-            this.releaseLock(key, lockValue);
+            this.localUnlock(keys);
         }
     }
 
+    //等待锁时不占用调用线程,func返回的future完成后释放锁
+    public <T> CompletableFuture<T> exeFuncWithLockAsync(
+            KeyEntity<? extends KeyType> keyEntity, Duration timeout, int maxRetry, Function<NullType, CompletableFuture<T>> func
+    ) {
+        String key = this.distributedKeyProvider.getKey(keyEntity);
+        String lockValue = UUID.randomUUID().toString();
+        long deadline = System.currentTimeMillis() + maxRetry * LOCK_RETRY_INTERVAL_MILLIS;
+
+        CompletableFuture<Boolean> acquired = new CompletableFuture<>();
+        this.lockExecutor.execute(() -> this.acquireLockAsync(key, lockValue, timeout, deadline, 0, acquired));
+
+        return acquired.thenCompose(locked -> {
+            if (!locked) {
+                throw new DistributedLockedException("cant get lock");
+            }
+
+            LockWatchdog.Lease lease = this.lockWatchdog.watch(Collections.singletonList(key), lockValue, timeout);
+
+            CompletableFuture<T> future;
+            try {
+                future = func.apply(null);
+            } catch (Exception e) {
+                this.lockWatchdog.stop(lease);
+                this.releaseLock(key, lockValue);
+                throw e;
+            }
+
+            return future.whenComplete((o, e) -> {
+                this.lockWatchdog.stop(lease);
+                this.releaseLock(key, lockValue);
+            });
+        });
+    }
+
     //以下方法只做为缓存用,值都被保存为string,不要对他们进行数字加减操作
     public <T> T getDataFromCache(
             KeyEntity<? extends KeyType> keyEntity, Duration timeout, Class<T> clazz, Function<NullType, T> func
     ) {
         String key = this.distributedKeyProvider.getKey(keyEntity);
-        T obj = this.get(key, clazz);
+
+        EarlyRefresh.Config earlyRefreshConfig = this.earlyRefreshConfigMap.get(keyEntity.getType());
+        if (earlyRefreshConfig != null) {
+            return this.getDataFromEnvelopeCache(keyEntity, key, timeout, earlyRefreshConfig, o -> JsonHelper.readValue(o, clazz), func);
+        }
+
+        T obj = this.getWithNearCache(keyEntity.getType(), key, clazz);
 
         if (obj == null) {
-            obj = func.apply(null);
-            if (obj != null) {
-                this.template.opsForValue().setIfAbsent(key, JsonHelper.writeValueAsString(obj), timeout);
-            }
+            //合并的调用方共享json,各自反序列化出独立的对象
+            String json = this.singleFlight.execute(key, () -> this.loadWithLease(key, o -> this.readJson(keyEntity.getType(), o), () -> {
+                T value = func.apply(null);
+                if (value == null) {
+                    return null;
+                }
+
+                String valueJson = JsonHelper.writeValueAsString(value);
+                this.writeValue(keyEntity.getType(), key, valueJson, timeout, true);
+
+                return valueJson;
+            }));
+
+            obj = json == null ? null : JsonHelper.readValue(json, clazz);
         }
 
         return obj;
@@ -421,13 +1086,28 @@ public class StrictRedisProvider {
         List<T> list = null;
 
         String key = this.distributedKeyProvider.getKey(keyEntity);
-        String jsonStr = this.get(key, String.class);
+
+        EarlyRefresh.Config earlyRefreshConfig = this.earlyRefreshConfigMap.get(keyEntity.getType());
+        if (earlyRefreshConfig != null) {
+            return this.getDataFromEnvelopeCache(keyEntity, key, timeout, earlyRefreshConfig, o -> JsonHelper.readValue(o, type), func);
+        }
+
+        String jsonStr = this.getWithNearCache(keyEntity.getType(), key, String.class);
 
         if (jsonStr == null) {
-            list = func.apply(null);
-            if (list != null) {
-                this.template.opsForValue().setIfAbsent(key, JsonHelper.writeValueAsString(list), timeout);
-            }
+            String json = this.singleFlight.execute(key, () -> this.loadWithLease(key, o -> this.readJson(keyEntity.getType(), o), () -> {
+                List<T> value = func.apply(null);
+                if (value == null) {
+                    return null;
+                }
+
+                String valueJson = JsonHelper.writeValueAsString(value);
+                this.writeValue(keyEntity.getType(), key, valueJson, timeout, true);
+
+                return valueJson;
+            }));
+
+            list = json == null ? null : JsonHelper.readValue(json, type);
         } else {
             list = JsonHelper.readValue(jsonStr, type);
         }
@@ -443,6 +1123,11 @@ public class StrictRedisProvider {
             return map;
         }
 
+        EarlyRefresh.Config earlyRefreshConfig = this.earlyRefreshConfigMap.get(type);
+        if (earlyRefreshConfig != null) {
+            return this.getMapFromEnvelopeCache(type, timeout, earlyRefreshConfig, clazz, ids, func, keyConverter);
+        }
+
         List<K> needCacheIds = new ArrayList<>();
 
         List<String> keys = CollectionHelper.map(
@@ -450,7 +1135,7 @@ public class StrictRedisProvider {
                 o -> this.distributedKeyProvider.getKey(KeyEntity.of(type, keyConverter.apply(o)))
         );
 
-        List<V> cacheList = this.multiGetIntern(keys, clazz);
+        List<V> cacheList = this.convertList(this.multiGetWithNearCache(type, keys), clazz);
 
         for (int i = 0; i < cacheList.size(); i++) {
             V value = cacheList.get(i);
@@ -464,30 +1149,244 @@ public class StrictRedisProvider {
             needCacheIds.add(key);
         }
 
-        Map<K, V> needCacheMap = func.apply(needCacheIds);
-        if (needCacheMap.isEmpty()) {
-            return map;
+        Map<K, String> needCacheMap = this.singleFlight.executeMulti(
+                needCacheIds,
+                o -> this.distributedKeyProvider.getKey(KeyEntity.of(type, keyConverter.apply(o))),
+                list -> {
+                    Map<K, V> loadedMap = func.apply(list);
+
+                    Map<K, String> jsonMap = new HashMap<>(loadedMap.size());
+                    Map<String, Object> stringCacheMap = new HashMap<>(loadedMap.size());
+                    for (Map.Entry<K, V> entry : loadedMap.entrySet()) {
+                        if (entry.getValue() == null) {
+                            continue;
+                        }
+
+                        KeyEntity<T> keyEntity = KeyEntity.of(type, keyConverter.apply(entry.getKey()));
+
+                        String json = JsonHelper.writeValueAsString(entry.getValue());
+                        jsonMap.put(entry.getKey(), json);
+                        stringCacheMap.put(this.distributedKeyProvider.getKey(keyEntity), json);
+                    }
+                    this.writeValues(type, stringCacheMap, timeout, true);
+
+                    return jsonMap;
+                }
+        );
+
+        map.putAll(readJsonMap(needCacheMap, clazz));
+
+        return map;
+    }
+
+    private <T> T getDataFromEnvelopeCache(
+            KeyEntity<? extends KeyType> keyEntity, String key, Duration timeout, EarlyRefresh.Config config,
+            Function<String, T> valueReader, Function<NullType, T> func
+    ) {
+        Object raw = this.getRawWithNearCache(keyEntity.getType(), key);
+
+        EarlyRefresh.Envelope envelope = EarlyRefresh.Envelope.parse(raw);
+        if (envelope == null && raw != null) {
+            return valueReader.apply(JsonHelper.writeValueAsString(raw));
         }
 
-        map.putAll(needCacheMap);
+        if (envelope != null) {
+            if (envelope.shouldRefresh(config.getBeta())) {
+                EarlyRefresh.Envelope fresh = this.earlyRefresh(key, config, () -> {
+                    EarlyRefresh.Envelope data = this.computeEnvelope(timeout, () -> func.apply(null));
+                    if (data != null) {
+                        this.writeValue(keyEntity.getType(), key, JsonHelper.writeValueAsString(data), timeout, false);
+                        this.evictNearCache(keyEntity, key);
+                    }
+
+                    return data;
+                });
+
+                if (fresh != null) {
+                    envelope = fresh;
+                }
+            }
 
-        Map<String, Object> stringCacheMap = new HashMap<>(needCacheMap.size());
-        for (Map.Entry<K, V> entry : needCacheMap.entrySet()) {
+            return valueReader.apply(envelope.getV());
+        }
+
+        envelope = this.singleFlight.execute(key, () -> this.loadWithLease(key, o -> EarlyRefresh.Envelope.parse(this.readRaw(keyEntity.getType(), o)), () -> {
+            EarlyRefresh.Envelope data = this.computeEnvelope(timeout, () -> func.apply(null));
+            if (data != null) {
+                this.writeValue(keyEntity.getType(), key, JsonHelper.writeValueAsString(data), timeout, true);
+            }
+
+            return data;
+        }));
+        if (envelope == null) {
+            return null;
+        }
+
+        return valueReader.apply(envelope.getV());
+    }
+
+    private <K, V, T extends KeyType> Map<K, V> getMapFromEnvelopeCache(
+            T type, Duration timeout, EarlyRefresh.Config config, Class<V> clazz,
+            List<K> ids, Function<List<K>, Map<K, V>> func, Function<K, String> keyConverter
+    ) {
+        Map<K, V> map = new HashMap<>(ids.size());
+        Function<K, String> keyFunc = o -> this.distributedKeyProvider.getKey(KeyEntity.of(type, keyConverter.apply(o)));
+
+        List<Object> rawList = this.multiGetWithNearCache(type, CollectionHelper.map(ids, keyFunc));
+
+        List<K> needCacheIds = new ArrayList<>();
+        List<K> needRefreshIds = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            K id = ids.get(i);
+            Object raw = rawList.get(i);
+            if (raw == null) {
+                needCacheIds.add(id);
+                continue;
+            }
+
+            EarlyRefresh.Envelope envelope = EarlyRefresh.Envelope.parse(raw);
+            if (envelope == null) {
+                map.put(id, JsonHelper.convert(raw, clazz));
+                continue;
+            }
+
+            map.put(id, JsonHelper.readValue(envelope.getV(), clazz));
+            if (envelope.shouldRefresh(config.getBeta())) {
+                needRefreshIds.add(id);
+            }
+        }
+
+        if (!needRefreshIds.isEmpty()) {
+            if (config.isAsync() && this.earlyRefreshExecutor != null) {
+                List<K> refreshIds = new ArrayList<>();
+                for (K id : needRefreshIds) {
+                    if (this.earlyRefreshingKeys.add(keyFunc.apply(id))) {
+                        refreshIds.add(id);
+                    }
+                }
+                if (!refreshIds.isEmpty()) {
+                    this.submitEarlyRefresh(
+                            CollectionHelper.map(refreshIds, keyFunc),
+                            () -> this.loadEnvelopeMap(type, timeout, refreshIds, func, keyConverter, true)
+                    );
+                }
+            } else {
+                map.putAll(readJsonMap(this.singleFlight.executeMulti(
+                        needRefreshIds, keyFunc, list -> this.loadEnvelopeMap(type, timeout, list, func, keyConverter, true)
+                ), clazz));
+            }
+        }
+
+        map.putAll(readJsonMap(this.singleFlight.executeMulti(
+                needCacheIds, keyFunc, list -> this.loadEnvelopeMap(type, timeout, list, func, keyConverter, false)
+        ), clazz));
+
+        return map;
+    }
+
+    //返回每个id的值的json,供合并的调用方各自反序列化
+    private <K, V, T extends KeyType> Map<K, String> loadEnvelopeMap(
+            T type, Duration timeout, List<K> ids, Function<List<K>, Map<K, V>> func, Function<K, String> keyConverter, boolean overwrite
+    ) {
+        long start = System.currentTimeMillis();
+        Map<K, V> loadedMap = func.apply(ids);
+        long now = System.currentTimeMillis();
+
+        Map<K, String> jsonMap = new HashMap<>(loadedMap.size());
+        Map<String, Object> stringCacheMap = new HashMap<>(loadedMap.size());
+        List<KeyEntity<T>> keyEntities = new ArrayList<>(loadedMap.size());
+        for (Map.Entry<K, V> entry : loadedMap.entrySet()) {
             if (entry.getValue() == null) {
                 continue;
             }
 
             KeyEntity<T> keyEntity = KeyEntity.of(type, keyConverter.apply(entry.getKey()));
+            keyEntities.add(keyEntity);
+
+            String json = JsonHelper.writeValueAsString(entry.getValue());
+            jsonMap.put(entry.getKey(), json);
 
-            stringCacheMap.put(this.distributedKeyProvider.getKey(keyEntity), JsonHelper.writeValueAsString(entry.getValue()));
+            EarlyRefresh.Envelope envelope = EarlyRefresh.Envelope.of(json, now - start, now + timeout.toMillis());
+            stringCacheMap.put(this.distributedKeyProvider.getKey(keyEntity), JsonHelper.writeValueAsString(envelope));
         }
-        if (!stringCacheMap.isEmpty()) {
-            this.setNxExIntern(stringCacheMap, timeout);
+
+        if (stringCacheMap.isEmpty()) {
+            return jsonMap;
+        }
+
+        if (!overwrite) {
+            this.writeValues(type, stringCacheMap, timeout, true);
+            return jsonMap;
+        }
+
+        this.writeValues(type, stringCacheMap, timeout, false);
+        for (KeyEntity<T> keyEntity : keyEntities) {
+            this.evictNearCache(keyEntity, this.distributedKeyProvider.getKey(keyEntity));
+        }
+
+        return jsonMap;
+    }
+
+    private static <K, V> Map<K, V> readJsonMap(Map<K, String> jsonMap, Class<V> clazz) {
+        Map<K, V> map = new HashMap<>(jsonMap.size());
+        for (Map.Entry<K, String> entry : jsonMap.entrySet()) {
+            map.put(entry.getKey(), JsonHelper.readValue(entry.getValue(), clazz));
         }
 
         return map;
     }
 
+    private String readJson(KeyType type, String key) {
+        Object raw = this.readRaw(type, key);
+        if (raw == null) {
+            return null;
+        }
+
+        return JsonHelper.writeValueAsString(raw);
+    }
+
+    private <T> EarlyRefresh.Envelope computeEnvelope(Duration timeout, Supplier<T> loader) {
+        long start = System.currentTimeMillis();
+        T value = loader.get();
+        if (value == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+
+        return EarlyRefresh.Envelope.of(JsonHelper.writeValueAsString(value), now - start, now + timeout.toMillis());
+    }
+
+    //同步刷新返回新值,异步刷新返回null由读者继续使用旧值
+    private EarlyRefresh.Envelope earlyRefresh(String key, EarlyRefresh.Config config, Supplier<EarlyRefresh.Envelope> refresher) {
+        if (config.isAsync() && this.earlyRefreshExecutor != null) {
+            if (this.earlyRefreshingKeys.add(key)) {
+                this.submitEarlyRefresh(Lists.newArrayList(key), refresher);
+            }
+
+            return null;
+        }
+
+        return this.singleFlight.execute(key, refresher);
+    }
+
+    private void submitEarlyRefresh(List<String> keys, Supplier<?> refresher) {
+        try {
+            this.earlyRefreshExecutor.execute(() -> {
+                try {
+                    refresher.get();
+                } catch (Exception e) {
+                    log.error("early refresh error: {}", keys, e);
+                } finally {
+                    this.earlyRefreshingKeys.removeAll(keys);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.earlyRefreshingKeys.removeAll(keys);
+            log.warn("early refresh rejected: {}", keys);
+        }
+    }
+
     public <K, V> Map<K, V> getMapFromHashCache(
             List<K> ids, Class<V> clazz, KeyEntity<? extends KeyType> keyEntity,
             Duration duration, Function<List<K>, Map<K, V>> func, Function<K, String> keyConverter
@@ -499,6 +1398,8 @@ public class StrictRedisProvider {
             List<K> ids, Class<V> clazz, KeyEntity<? extends KeyType> keyEntity,
             int timeout, TimeUnit timeUnit, Function<List<K>, Map<K, V>> func, Function<K, String> keyConverter
     ) {
+        this.checkNoCodec(keyEntity, "getMapFromHashCache");
+
         String key = this.distributedKeyProvider.getKey(keyEntity);
 
         Map<K, V> map = new HashMap<>(ids.size());
@@ -542,6 +1443,299 @@ public class StrictRedisProvider {
     }
 
 
+    private <T> T loadWithLease(String key, Function<String, T> reader, Supplier<T> loader) {
+        if (this.cacheLoadLease == null) {
+            return loader.get();
+        }
+
+        String leaseKey = String.format("%s:lease", key);
+        String leaseValue = UUID.randomUUID().toString();
+        long deadline = System.currentTimeMillis() + this.cacheLoadLease.toMillis();
+
+        //其他节点正在回源时等租约的释放通知再读缓存,没有通知器时才轮询,租约期内都没读到就自己回源
+        while (true) {
+            CompletableFuture<Void> released = this.lockReleaseNotifier == null ? null : this.lockReleaseNotifier.register(leaseKey);
+            try {
+                if (this.lock(leaseKey, leaseValue, this.cacheLoadLease)) {
+                    try {
+                        return loader.get();
+                    } finally {
+                        this.releaseLock(leaseKey, leaseValue);
+                    }
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                if (released == null) {
+                    SleepHelper.sleep(Duration.ofMillis(Math.min(remaining, 50)));
+                } else {
+                    try {
+                        released.get(remaining, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        //通知丢失,读一次缓存后自己回源
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (ExecutionException e) {
+                        throw new BizException(e);
+                    }
+                }
+            } finally {
+                this.unregisterLockWaiter(leaseKey, released);
+            }
+
+            T value = reader.apply(key);
+            if (value != null) {
+                this.singleFlight.recordRemoteSaved();
+                return value;
+            }
+        }
+
+        return loader.get();
+    }
+
+    private <T> T getWithNearCache(KeyType type, String key, Class<T> clazz) {
+        Object value = this.getRawWithNearCache(type, key);
+        if (value == null) {
+            return null;
+        }
+
+        return JsonHelper.convert(value, clazz);
+    }
+
+    private Object getRawWithNearCache(KeyType type, String key) {
+        if (this.nearCache == null || !this.nearCache.support(type)) {
+            return this.readRaw(type, key);
+        }
+
+        Object value = this.nearCache.getIfPresent(type, key);
+        if (value == null) {
+            long version = this.nearCache.giveVersion(key);
+
+            value = this.readRaw(type, key);
+            if (value == null) {
+                return null;
+            }
+
+            this.nearCache.put(type, key, value, version);
+        }
+
+        return value;
+    }
+
+    private List<Object> multiGetWithNearCache(KeyType type, List<String> keys) {
+        if (this.nearCache == null || !this.nearCache.support(type)) {
+            return this.readRawList(type, keys);
+        }
+
+        List<Object> values = new ArrayList<>(keys.size());
+        List<Integer> missIndexes = new ArrayList<>();
+        List<String> missKeys = new ArrayList<>();
+
+        for (int i = 0; i < keys.size(); i++) {
+            Object value = this.nearCache.getIfPresent(type, keys.get(i));
+            values.add(value);
+
+            if (value == null) {
+                missIndexes.add(i);
+                missKeys.add(keys.get(i));
+            }
+        }
+
+        if (missKeys.isEmpty()) {
+            return values;
+        }
+
+        long[] missVersions = new long[missKeys.size()];
+        for (int i = 0; i < missKeys.size(); i++) {
+            missVersions[i] = this.nearCache.giveVersion(missKeys.get(i));
+        }
+
+        List<Object> missValues = this.readRawList(type, missKeys);
+        for (int i = 0; i < missIndexes.size(); i++) {
+            Object value = missValues.get(i);
+            if (value == null) {
+                continue;
+            }
+
+            values.set(missIndexes.get(i), value);
+            this.nearCache.put(type, missKeys.get(i), value, missVersions[i]);
+        }
+
+        return values;
+    }
+
+    //配置了codec的KeyType读出的是值的文本形式,与RedisTemplate读出的一致
+    private Object readRaw(KeyType type, String key) {
+        RedisValueCodec codec = this.valueCodecMap.get(type);
+        if (codec == null) {
+            return this.template.opsForValue().get(key);
+        }
+
+        byte[] bytes = this.readBytes(key);
+        if (bytes == null) {
+            return null;
+        }
+
+        return codec.decode(bytes, String.class);
+    }
+
+    private List<Object> readRawList(KeyType type, List<String> keys) {
+        RedisValueCodec codec = this.valueCodecMap.get(type);
+        if (codec == null) {
+            return this.multiGetRawIntern(keys);
+        }
+
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < keys.size(); i++) {
+            rawKeys[i] = this.serializeKey(keys.get(i));
+        }
+
+        List<byte[]> bytesList = this.template.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+        if (bytesList == null) {
+            throw new BizException("redis 返回错误");
+        }
+
+        List<Object> values = new ArrayList<>(bytesList.size());
+        for (byte[] bytes : bytesList) {
+            values.add(bytes == null ? null : codec.decode(bytes, String.class));
+        }
+
+        return values;
+    }
+
+    private byte[] readBytes(String key) {
+        byte[] rawKey = this.serializeKey(key);
+
+        return this.template.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+    }
+
+    private void writeValue(KeyType type, String key, Object value, @Nullable Duration timeout, boolean ifAbsent) {
+        RedisValueCodec codec = this.valueCodecMap.get(type);
+        if (codec == null) {
+            if (ifAbsent) {
+                if (timeout == null) {
+                    this.template.opsForValue().setIfAbsent(key, value);
+                } else {
+                    this.template.opsForValue().setIfAbsent(key, value, timeout);
+                }
+                return;
+            }
+
+            if (timeout == null) {
+                this.template.opsForValue().set(key, value);
+            } else {
+                this.template.opsForValue().set(key, value, timeout);
+            }
+            return;
+        }
+
+        byte[] rawKey = this.serializeKey(key);
+        byte[] rawValue = codec.encode(value);
+        Expiration expiration = timeout == null ? Expiration.persistent() : Expiration.from(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        RedisStringCommands.SetOption option = ifAbsent ? RedisStringCommands.SetOption.ifAbsent() : RedisStringCommands.SetOption.upsert();
+
+        this.template.execute((RedisCallback<Boolean>) connection -> connection.stringCommands().set(rawKey, rawValue, expiration, option));
+    }
+
+    private void writeValues(KeyType type, Map<String, Object> map, Duration timeout, boolean ifAbsent) {
+        if (map.isEmpty()) {
+            return;
+        }
+
+        RedisValueCodec codec = this.valueCodecMap.get(type);
+        if (codec == null) {
+            if (ifAbsent) {
+                this.setNxExIntern(map, timeout);
+            } else {
+                this.setExIntern(map, timeout);
+            }
+            return;
+        }
+
+        Map<byte[], byte[]> rawMap = new LinkedHashMap<>(map.size());
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            rawMap.put(this.serializeKey(entry.getKey()), codec.encode(entry.getValue()));
+        }
+
+        Expiration expiration = Expiration.from(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        RedisStringCommands.SetOption option = ifAbsent ? RedisStringCommands.SetOption.ifAbsent() : RedisStringCommands.SetOption.upsert();
+
+        this.template.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<byte[], byte[]> entry : rawMap.entrySet()) {
+                connection.stringCommands().set(entry.getKey(), entry.getValue(), expiration, option);
+            }
+
+            return null;
+        });
+    }
+
+    byte[] rawKey(KeyEntity<? extends KeyType> keyEntity) {
+        if (this.utf8KeySerializer) {
+            return this.distributedKeyProvider.getKeyBytes(keyEntity);
+        }
+
+        return this.serializeKey(this.distributedKeyProvider.getKey(keyEntity));
+    }
+
+    private byte[] serializeKey(String key) {
+        return ((RedisSerializer<String>) this.template.getKeySerializer()).serialize(key);
+    }
+
+    private void evictNearCache(KeyEntity<? extends KeyType> keyEntity, String key) {
+        if (this.nearCache != null) {
+            this.nearCache.invalidate(keyEntity.getType(), key);
+        }
+
+        //计数器、锁、hash等没有本地缓存的KeyType不广播
+        if (this.nearCacheInvalidationBus != null && this.nearCacheInvalidationBus.support(keyEntity.getType())) {
+            this.nearCacheInvalidationBus.publish(key);
+        }
+    }
+
+    private void evictNearCache(Collection<KeyEntity<? extends KeyType>> keyEntities) {
+        if (this.nearCache == null && this.nearCacheInvalidationBus == null) {
+            return;
+        }
+
+        for (KeyEntity<? extends KeyType> keyEntity : keyEntities) {
+            this.evictNearCache(keyEntity, this.distributedKeyProvider.getKey(keyEntity));
+        }
+    }
+
+    @Getter
+    public static class LongValues {
+        private final long[] values;
+
+        private final BitSet presence;
+
+        private LongValues(int size) {
+            this.values = new long[size];
+            this.presence = new BitSet(size);
+        }
+
+        private void set(int index, long value) {
+            this.values[index] = value;
+            this.presence.set(index);
+        }
+
+        public int size() {
+            return this.values.length;
+        }
+
+        public boolean isPresent(int index) {
+            return this.presence.get(index);
+        }
+
+        //不存在时为0
+        public long get(int index) {
+            return this.values[index];
+        }
+    }
+
     @Getter
     public static class AcceptType {
         private Object value;
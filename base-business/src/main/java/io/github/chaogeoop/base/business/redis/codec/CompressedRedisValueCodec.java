@@ -0,0 +1,88 @@
+package io.github.chaogeoop.base.business.redis.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//超过阈值的值用deflate压缩,首字节标记是否压缩
+public class CompressedRedisValueCodec implements RedisValueCodec {
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+
+    private final RedisValueCodec delegate;
+    private final int threshold;
+
+    public CompressedRedisValueCodec(RedisValueCodec delegate, int threshold) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        byte[] bytes = this.delegate.encode(value);
+        if (bytes.length < this.threshold) {
+            return this.withHeader(RAW, bytes, bytes.length);
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 2 + 1);
+            output.write(DEFLATED);
+
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                output.write(buffer, 0, length);
+            }
+
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        if (bytes.length == 0) {
+            return this.delegate.decode(bytes, clazz);
+        }
+
+        if (bytes[0] == RAW) {
+            return this.delegate.decode(Arrays.copyOfRange(bytes, 1, bytes.length), clazz);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, 1, bytes.length - 1);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    throw new DataFormatException("truncated deflate data");
+                }
+                output.write(buffer, 0, length);
+            }
+
+            return this.delegate.decode(output.toByteArray(), clazz);
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private byte[] withHeader(byte header, byte[] bytes, int length) {
+        byte[] result = new byte[length + 1];
+        result[0] = header;
+        System.arraycopy(bytes, 0, result, 1, length);
+
+        return result;
+    }
+}
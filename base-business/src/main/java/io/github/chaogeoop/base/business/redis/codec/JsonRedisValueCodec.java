@@ -0,0 +1,18 @@
+package io.github.chaogeoop.base.business.redis.codec;
+
+import io.github.chaogeoop.base.business.common.helpers.JsonHelper;
+
+import java.nio.charset.StandardCharsets;
+
+//直接保存json文本,去掉Jackson2JsonRedisSerializer对字符串的二次包装
+public class JsonRedisValueCodec implements RedisValueCodec {
+    @Override
+    public byte[] encode(Object value) {
+        return JsonHelper.writeValueAsString(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        return JsonHelper.readValue(new String(bytes, StandardCharsets.UTF_8), clazz);
+    }
+}
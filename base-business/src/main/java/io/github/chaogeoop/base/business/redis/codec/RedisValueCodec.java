@@ -0,0 +1,9 @@
+package io.github.chaogeoop.base.business.redis.codec;
+
+//按KeyType配置的值编解码器,配置后该类型的值以codec产出的字节直接写入redis,不再经过RedisTemplate的序列化
+//decode为String时返回值的文本形式,与未配置codec时缓存方法读到的内容一致
+public interface RedisValueCodec {
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> clazz);
+}
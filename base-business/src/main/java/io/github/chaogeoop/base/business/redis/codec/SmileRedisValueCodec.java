@@ -0,0 +1,81 @@
+package io.github.chaogeoop.base.business.redis.codec;
+
+import io.github.chaogeoop.base.business.common.helpers.JsonHelper;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+//以smile二进制保存,传入的json对象或数组文本先解析成树再编码,避免json字符串被当成普通字符串再包一层
+//其他字符串、以及解析后写回文本和原文不一致的json都作为TextNode保存,读出的文本和写入时完全一致
+public class SmileRedisValueCodec implements RedisValueCodec {
+    private static final ObjectMapper JSON_OM = new ObjectMapper();
+    private static final ObjectMapper SMILE_OM = new ObjectMapper(new SmileFactory());
+
+    static {
+        JSON_OM.enable(DeserializationFeature.FAIL_ON_TRAILING_TOKENS);
+
+        SMILE_OM.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        SMILE_OM.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            JsonNode node;
+            if (value instanceof String) {
+                node = this.parseText((String) value);
+            } else {
+                node = SMILE_OM.valueToTree(value);
+            }
+
+            return SMILE_OM.writeValueAsBytes(node);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) {
+        try {
+            JsonNode node = SMILE_OM.readTree(bytes);
+
+            if (String.class == clazz) {
+                if (node.isTextual()) {
+                    return (T) node.textValue();
+                }
+
+                return (T) JSON_OM.writeValueAsString(node);
+            }
+
+            //原样保存的json文本
+            if (node.isTextual()) {
+                return JsonHelper.readValue(node.textValue(), clazz);
+            }
+
+            return SMILE_OM.treeToValue(node, clazz);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    //数字、布尔、带引号的字符串等按文本保存,json对象和数组只有能原样还原时才转成树
+    private JsonNode parseText(String value) {
+        if (value.isEmpty() || (value.charAt(0) != '{' && value.charAt(0) != '[')) {
+            return TextNode.valueOf(value);
+        }
+
+        try {
+            JsonNode node = JSON_OM.readTree(value);
+            if (node == null || !node.isContainerNode() || !value.equals(JSON_OM.writeValueAsString(node))) {
+                return TextNode.valueOf(value);
+            }
+
+            return node;
+        } catch (Exception e) {
+            return TextNode.valueOf(value);
+        }
+    }
+}
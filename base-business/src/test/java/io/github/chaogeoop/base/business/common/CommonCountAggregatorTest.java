@@ -0,0 +1,106 @@
+package io.github.chaogeoop.base.business.common;
+
+import io.github.chaogeoop.base.business.mongodb.MongoPersistEntity;
+import io.github.chaogeoop.base.business.mongodb.PersistProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.*;
+
+//调用方的持久化由手动调用返回的缓存接口模拟,窗口设得很长,由flush手动刷出
+public class CommonCountAggregatorTest {
+    private final List<Map<CommonCountProvider.CountBizDate, Long>> flushed = new ArrayList<>();
+
+    private CommonCountProvider commonCountProvider;
+    private CommonCountAggregator aggregator;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.commonCountProvider = mock(CommonCountProvider.class);
+        when(this.commonCountProvider.insertPersistHistory(anyMap())).thenAnswer(invocation -> {
+            this.flushed.add(new HashMap<>(invocation.getArgument(0)));
+            return new MongoPersistEntity.PersistEntity();
+        });
+
+        this.aggregator = new CommonCountAggregator(this.commonCountProvider, mock(PersistProvider.class), 1000, Duration.ofHours(1));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.aggregator.shutdown();
+    }
+
+    @Test
+    public void incIsAggregatedOnlyAfterCallerPersist() {
+        CommonCountProvider.CountBizDate bizDate = newBizDate();
+
+        MongoPersistEntity.PersistEntity first = this.aggregator.add(Map.of(bizDate, 2L));
+        MongoPersistEntity.PersistEntity second = this.aggregator.add(Map.of(bizDate, 3L));
+
+        //业务数据还没持久化时不会刷出
+        this.aggregator.flush();
+        assertTrue(this.flushed.isEmpty());
+
+        first.getCacheList().forEach(MongoPersistEntity.CacheInterface::persist);
+        second.getCacheList().forEach(MongoPersistEntity.CacheInterface::persist);
+        this.aggregator.flush();
+
+        assertEquals(Collections.singletonList(Map.of(bizDate, 5L)), this.flushed);
+    }
+
+    @Test
+    public void rollbackRemovesInc() {
+        CommonCountProvider.CountBizDate bizDate = newBizDate();
+
+        MongoPersistEntity.PersistEntity kept = this.aggregator.add(Map.of(bizDate, 2L));
+        MongoPersistEntity.PersistEntity rolledBack = this.aggregator.add(Map.of(bizDate, 3L));
+
+        kept.getCacheList().forEach(MongoPersistEntity.CacheInterface::persist);
+        rolledBack.getCacheList().forEach(MongoPersistEntity.CacheInterface::persist);
+        rolledBack.getCacheList().forEach(MongoPersistEntity.CacheInterface::rollback);
+        this.aggregator.flush();
+
+        assertEquals(Collections.singletonList(Map.of(bizDate, 2L)), this.flushed);
+    }
+
+    @Test
+    public void rollbackAfterFlushIsOffsetInNextWindow() {
+        CommonCountProvider.CountBizDate bizDate = newBizDate();
+
+        MongoPersistEntity.PersistEntity entity = this.aggregator.add(Map.of(bizDate, 3L));
+        entity.getCacheList().forEach(MongoPersistEntity.CacheInterface::persist);
+        this.aggregator.flush();
+
+        entity.getCacheList().forEach(MongoPersistEntity.CacheInterface::rollback);
+        this.aggregator.flush();
+
+        assertEquals(Arrays.asList(Map.of(bizDate, 3L), Map.of(bizDate, -3L)), this.flushed);
+    }
+
+    @Test
+    public void addAfterShutdownReturnsHistoryEntity() {
+        this.aggregator.shutdown();
+
+        CommonCountProvider.CountBizDate bizDate = newBizDate();
+        this.aggregator.add(Map.of(bizDate, 1L));
+
+        assertEquals(Collections.singletonList(Map.of(bizDate, 1L)), this.flushed);
+        verify(this.commonCountProvider, times(1)).insertPersistHistory(anyMap());
+    }
+
+    private static CommonCountProvider.CountBizDate newBizDate() {
+        CommonCountProvider.CountBiz biz = new CommonCountProvider.CountBiz();
+        biz.setTypeId("article-1");
+        biz.setBizType("article");
+        biz.setSubBizType("view");
+
+        return biz.convertToBizDate("2024-01-01");
+    }
+}
@@ -0,0 +1,146 @@
+package io.github.chaogeoop.base.business.common;
+
+import io.github.chaogeoop.base.business.common.errors.DistributedLockedException;
+import io.github.chaogeoop.base.business.common.helpers.DateConverter;
+import io.github.chaogeoop.base.business.mongodb.PersistProvider;
+import io.github.chaogeoop.base.business.redis.DistributedKeyProvider;
+import io.github.chaogeoop.base.business.redis.KeyEntity;
+import io.github.chaogeoop.base.business.redis.KeyType;
+import io.github.chaogeoop.base.business.redis.StrictRedisProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+//redis锁用不可重入的内存实现模拟SET NX,同一把锁在持有期间再次加锁直接失败
+public class CommonCountProviderTest {
+    private static final TestKeyType TOTAL_CACHE_TYPE = TestKeyType.of("count", "totalCache");
+    private static final TestKeyType TOTAL_CREATE_LOCK_TYPE = TestKeyType.of("count", "totalCreateLock");
+    private static final TestKeyType BIZ_DATE_CACHE_TYPE = TestKeyType.of("count", "bizDateCache");
+    private static final TestKeyType HISTORY_LOCK_TYPE = TestKeyType.of("count", "historyLock");
+    private static final TestKeyType AFTER_ALL_CACHE_TYPE = TestKeyType.of("count", "afterAllCache");
+    private static final TestKeyType HISTORY_HASH_TYPE = TestKeyType.of("count", "historyHash");
+
+    private final Set<KeyEntity<? extends KeyType>> heldLocks = new HashSet<>();
+    private final Map<String, CommonCountProvider.CommonCountPersistHistory> histories = new HashMap<>();
+    private final AtomicReference<TestTotal> storedTotal = new AtomicReference<>();
+
+    private MongoTemplate mongoTemplate;
+    private PersistProvider persistProvider;
+    private CommonCountProvider commonCountProvider;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        DistributedKeyProvider distributedKeyProvider = mock(DistributedKeyProvider.class);
+        when(distributedKeyProvider.getScope()).thenReturn("test");
+
+        StrictRedisProvider strictRedisProvider = mock(StrictRedisProvider.class);
+        when(strictRedisProvider.getDistributedKeyProvider()).thenReturn(distributedKeyProvider);
+        when(strictRedisProvider.hmget(any(KeyEntity.class), anyList(), eq(CommonCountProvider.CommonCountPersistHistory.class))).thenAnswer(invocation -> {
+            List<String> ids = invocation.getArgument(1);
+
+            List<CommonCountProvider.CommonCountPersistHistory> list = new ArrayList<>();
+            for (String id : ids) {
+                list.add(this.histories.get(id));
+            }
+
+            return list;
+        });
+
+        doCallRealMethod().when(strictRedisProvider).exeFuncWithLock(any(KeyEntity.class), any(Function.class));
+        doCallRealMethod().when(strictRedisProvider).exeFuncWithLock(any(KeyEntity.class), any(Duration.class), anyInt(), any(Function.class));
+        doCallRealMethod().when(strictRedisProvider).exeFuncWithLocks(anyCollection(), any(Function.class));
+        doAnswer(invocation -> {
+            Collection<KeyEntity<? extends KeyType>> keys = invocation.getArgument(0);
+            Function<Object, Object> func = invocation.getArgument(3);
+
+            for (KeyEntity<? extends KeyType> key : keys) {
+                if (this.heldLocks.contains(key)) {
+                    throw new DistributedLockedException("cant get lock");
+                }
+            }
+
+            this.heldLocks.addAll(keys);
+            try {
+                return func.apply(null);
+            } finally {
+                this.heldLocks.removeAll(keys);
+            }
+        }).when(strictRedisProvider).exeFuncWithLocks(anyCollection(), any(Duration.class), anyInt(), any(Function.class));
+
+        this.mongoTemplate = mock(MongoTemplate.class);
+        when(this.mongoTemplate.findOne(any(Query.class), eq(TestTotal.class), anyString())).thenAnswer(invocation -> this.storedTotal.get());
+        when(this.mongoTemplate.insert(any(TestTotal.class), anyString())).thenAnswer(invocation -> {
+            TestTotal data = invocation.getArgument(0);
+            this.storedTotal.set(data);
+
+            return data;
+        });
+
+        this.persistProvider = mock(PersistProvider.class);
+        when(this.persistProvider.giveMongoTemplate()).thenReturn(this.mongoTemplate);
+
+        CommonCountProvider.RedisAbout<TestKeyType> redisAbout = CommonCountProvider.RedisAbout.of(
+                strictRedisProvider, Duration.ofMinutes(10),
+                TOTAL_CACHE_TYPE, TOTAL_CREATE_LOCK_TYPE, BIZ_DATE_CACHE_TYPE,
+                HISTORY_LOCK_TYPE, AFTER_ALL_CACHE_TYPE, KeyEntity.of(HISTORY_HASH_TYPE, "all")
+        );
+
+        this.commonCountProvider = new CommonCountProvider(this.persistProvider, redisAbout, o -> null, TestTotal.class, TestDateLog.class);
+    }
+
+    //新biz还没有total时,多个history一起持久化不能在持有total锁时再去加创建锁
+    @Test
+    public void multiHistoriesCreateTotalForNewBiz() {
+        String today = DateConverter.dateToString(new Date(), DateConverter.DateFormatEnum.fullUntilDay);
+        CommonCountProvider.CountBiz biz = new CommonCountProvider.CountBiz();
+        biz.setTypeId("article-1");
+        biz.setBizType("article");
+        biz.setSubBizType("view");
+
+        this.histories.put("h1", CommonCountProvider.CommonCountPersistHistory.of(biz.convertToBizDate(today), 2));
+        this.histories.put("h2", CommonCountProvider.CommonCountPersistHistory.of(biz.convertToBizDate(today), 3));
+
+        this.commonCountProvider.historyToCount(Arrays.asList("h1", "h2"));
+
+        verify(this.mongoTemplate, times(1)).insert(any(TestTotal.class), anyString());
+        assertEquals(today, this.storedTotal.get().getLatestCacheDate());
+        verify(this.persistProvider, times(1)).persist(anyList());
+        assertTrue(this.heldLocks.isEmpty());
+    }
+
+    @Document("count_test_total")
+    public static class TestTotal extends CommonCountProvider.CommonCountTotal {
+    }
+
+    @Document("count_test_date_log")
+    public static class TestDateLog extends CommonCountProvider.CommonCountDateLog {
+    }
+
+    private static class TestKeyType extends KeyType {
+        private static TestKeyType of(String type, String subType) {
+            TestKeyType data = new TestKeyType();
+
+            data.setType(type);
+            data.setSubType(subType);
+
+            return data;
+        }
+    }
+}
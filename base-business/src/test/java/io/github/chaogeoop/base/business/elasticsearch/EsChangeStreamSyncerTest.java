@@ -0,0 +1,284 @@
+package io.github.chaogeoop.base.business.elasticsearch;
+
+import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import lombok.Getter;
+import lombok.Setter;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+//用记录下来的事件回放,es写入由桩实现记录
+public class EsChangeStreamSyncerTest {
+    private static final String COLLECTION_NAME = "es_syncer_test_article";
+    private static final String ID_A = "65f0c0a1b2c3d4e5f6a7b8c1";
+    private static final String ID_B = "65f0c0a1b2c3d4e5f6a7b8c2";
+
+    private MongoTemplate mongoTemplate;
+    private StubBulkIndexer bulkIndexer;
+    private EsChangeStreamSyncer syncer;
+
+    @BeforeEach
+    public void setUp() {
+        MongoConverter converter = mock(MongoConverter.class);
+        when(converter.read(eq(Article.class), any(Document.class))).thenAnswer(invocation -> {
+            Document document = invocation.getArgument(1);
+
+            return Article.of(document.getString("title"));
+        });
+
+        this.mongoTemplate = mock(MongoTemplate.class);
+        when(this.mongoTemplate.getConverter()).thenReturn(converter);
+
+        this.bulkIndexer = new StubBulkIndexer();
+        this.syncer = new EsChangeStreamSyncer(this.mongoTemplate, Collections.singletonList(Article.class), "test", this.bulkIndexer);
+    }
+
+    @Test
+    public void replayMergesEventsOfSameDocument() {
+        List<EsChangeStreamSyncer.ChangeEvent> events = Arrays.asList(
+                event("insert", ID_A, "first", "1"),
+                event("update", ID_A, "second", "2"),
+                event("insert", ID_B, "other", "3"),
+                event("delete", ID_B, null, "4")
+        );
+
+        this.syncer.replay(events);
+
+        assertEquals(1, this.bulkIndexer.calls.size());
+        StubBulkIndexer.Call call = this.bulkIndexer.calls.get(0);
+        assertEquals(Collections.singletonMap(uniqueId(ID_A), "{\"title\":\"second\"}"), call.idDataMap);
+        assertEquals(Collections.singleton(uniqueId(ID_B)), call.deleteIds);
+
+        assertEquals(4, this.syncer.getEventCount());
+        assertEquals(2, this.syncer.getIndexedCount());
+        assertEquals(0, this.syncer.getFailedCount());
+        verify(this.mongoTemplate, never()).upsert(any(), any(), anyString());
+    }
+
+    @Test
+    public void failedDocumentsAreRetried() {
+        this.bulkIndexer.failTimesMap.put(uniqueId(ID_A), 1);
+
+        this.syncer.replay(Arrays.asList(event("insert", ID_A, "first", "1"), event("insert", ID_B, "other", "2")));
+
+        assertEquals(2, this.bulkIndexer.calls.size());
+        assertEquals(Collections.singleton(uniqueId(ID_A)), this.bulkIndexer.calls.get(1).idDataMap.keySet());
+        assertEquals(2, this.syncer.getIndexedCount());
+        assertEquals(0, this.syncer.getFailedCount());
+    }
+
+    @Test
+    public void documentsStillFailingAfterRetryAreReported() {
+        this.bulkIndexer.failTimesMap.put(uniqueId(ID_A), Integer.MAX_VALUE);
+
+        assertThrows(BizException.class, () -> this.syncer.replay(Collections.singletonList(event("insert", ID_A, "first", "1"))));
+
+        assertEquals(0, this.syncer.getIndexedCount());
+        assertEquals(1, this.syncer.getFailedCount());
+    }
+
+    @Test
+    public void replayIsRefusedWhileRunning() {
+        this.syncer.start();
+        try {
+            assertThrows(BizException.class, () -> this.syncer.replay(Collections.singletonList(event("insert", ID_A, "first", "1"))));
+        } finally {
+            this.syncer.stop();
+        }
+
+        assertTrue(this.bulkIndexer.calls.isEmpty());
+    }
+
+    //没有匹配的事件时也保存cursor前进后的token,冷门集合的断点不会滑出oplog窗口
+    @Test
+    @SuppressWarnings("unchecked")
+    public void idleFlushSavesCursorToken() {
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = mock(MongoChangeStreamCursor.class);
+        when(cursor.getResumeToken()).thenReturn(BsonDocument.parse("{\"_data\": \"idle\"}"));
+        this.mockWatch(cursor, null);
+
+        this.syncer.setBatch(500, Duration.ofMillis(1));
+        this.syncer.start();
+        try {
+            ArgumentCaptor<Update> captor = ArgumentCaptor.forClass(Update.class);
+            verify(this.mongoTemplate, timeout(2000)).upsert(any(Query.class), captor.capture(), eq("es_change_stream_checkpoint"));
+
+            Document set = (Document) captor.getValue().getUpdateObject().get("$set");
+            assertEquals(BsonDocument.parse("{\"_data\": \"idle\"}").toJson(), set.get("token"));
+        } finally {
+            this.syncer.stop();
+        }
+
+        //token没有变化时不重复保存
+        verify(this.mongoTemplate, times(1)).upsert(any(Query.class), any(Update.class), eq("es_change_stream_checkpoint"));
+        assertTrue(this.bulkIndexer.calls.isEmpty());
+    }
+
+    //断点不在oplog里时删除断点从当前时间重新监听,不再用旧token无限重试
+    @Test
+    @SuppressWarnings("unchecked")
+    public void historyLostRestartsFromNow() {
+        when(this.mongoTemplate.findOne(any(Query.class), eq(Document.class), eq("es_change_stream_checkpoint")))
+                .thenReturn(new Document("_id", "test").append("token", "{\"_data\": \"stale\"}"))
+                .thenReturn(null);
+
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = mock(MongoChangeStreamCursor.class);
+        MongoCommandException historyLost = new MongoCommandException(
+                new BsonDocument("ok", new BsonInt32(0)).append("code", new BsonInt32(286)).append("errmsg", new BsonString("history lost")),
+                new ServerAddress()
+        );
+        this.mockWatch(cursor, historyLost);
+
+        AtomicInteger handled = new AtomicInteger();
+        this.syncer.setHistoryLostHandler(handled::incrementAndGet);
+
+        this.syncer.start();
+        try {
+            verify(cursor, timeout(2000).atLeastOnce()).tryNext();
+        } finally {
+            this.syncer.stop();
+        }
+
+        verify(this.mongoTemplate).remove(any(Query.class), eq("es_change_stream_checkpoint"));
+        assertEquals(1, handled.get());
+        assertEquals(1, this.syncer.getHistoryLostCount());
+    }
+
+    //resumeAfter打开的cursor抛出resumeError,不带断点时返回cursor
+    @SuppressWarnings("unchecked")
+    private void mockWatch(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor, RuntimeException resumeError) {
+        ChangeStreamIterable<Document> iterable = mock(ChangeStreamIterable.class);
+        ChangeStreamIterable<Document> resumeIterable = mock(ChangeStreamIterable.class);
+        when(iterable.fullDocument(any())).thenReturn(iterable);
+        when(iterable.resumeAfter(any())).thenReturn(resumeIterable);
+        when(iterable.cursor()).thenReturn(cursor);
+        if (resumeError == null) {
+            when(resumeIterable.cursor()).thenReturn(cursor);
+        } else {
+            when(resumeIterable.cursor()).thenThrow(resumeError);
+        }
+
+        MongoDatabase database = mock(MongoDatabase.class);
+        when(database.watch(anyList())).thenReturn(iterable);
+        when(this.mongoTemplate.getDb()).thenReturn(database);
+    }
+
+    private static EsChangeStreamSyncer.ChangeEvent event(String operationType, String id, String title, String resumeToken) {
+        EsChangeStreamSyncer.ChangeEvent data = new EsChangeStreamSyncer.ChangeEvent();
+
+        data.setOperationType(operationType);
+        data.setCollectionName(COLLECTION_NAME);
+        data.setId(id);
+        data.setFullDocument(title == null ? null : new Document("title", title).toJson());
+        data.setResumeToken(String.format("{\"_data\": \"%s\"}", resumeToken));
+
+        return data;
+    }
+
+    private static String uniqueId(String id) {
+        return COLLECTION_NAME + "_" + id;
+    }
+
+    private static class StubBulkIndexer implements EsChangeStreamSyncer.BulkIndexer {
+        private final List<Call> calls = new ArrayList<>();
+        private final Map<String, Integer> failTimesMap = new HashMap<>();
+
+        @Override
+        public Map<String, String> bulk(EsHelper.EsUnitInfo esUnitInfo, Map<String, String> idDataMap, Set<String> deleteIds) {
+            this.calls.add(new Call(new HashMap<>(idDataMap), new HashSet<>(deleteIds)));
+
+            Map<String, String> failedMap = new HashMap<>();
+            Set<String> ids = new HashSet<>(idDataMap.keySet());
+            ids.addAll(deleteIds);
+            for (String id : ids) {
+                int times = this.failTimesMap.getOrDefault(id, 0);
+                if (times > 0) {
+                    this.failTimesMap.put(id, times - 1);
+                    failedMap.put(id, "stub failure");
+                }
+            }
+
+            return failedMap;
+        }
+
+        private static class Call {
+            private final Map<String, String> idDataMap;
+            private final Set<String> deleteIds;
+
+            private Call(Map<String, String> idDataMap, Set<String> deleteIds) {
+                this.idDataMap = idDataMap;
+                this.deleteIds = deleteIds;
+            }
+        }
+    }
+
+    @Setter
+    @Getter
+    @org.springframework.data.mongodb.core.mapping.Document(COLLECTION_NAME)
+    public static class Article extends BaseModel implements ISearch<ArticleEs> {
+        private String title;
+
+        public static Article of(String title) {
+            Article data = new Article();
+
+            data.setTitle(title);
+
+            return data;
+        }
+
+        @Override
+        public Class<ArticleEs> giveEsModel() {
+            return ArticleEs.class;
+        }
+
+        @Override
+        public ArticleEs giveEsData() {
+            return ArticleEs.of(this.title);
+        }
+
+        @Override
+        public String giveEsJson() {
+            return String.format("{\"title\":\"%s\"}", this.title);
+        }
+    }
+
+    @Setter
+    @Getter
+    public static class ArticleEs implements IBaseEs {
+        @EsField(type = EsTypeEnum.KEYWORD)
+        private String title;
+
+        public static ArticleEs of(String title) {
+            ArticleEs data = new ArticleEs();
+
+            data.setTitle(title);
+
+            return data;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package io.github.chaogeoop.base.business.mongodb;
+
+import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
+import com.mongodb.bulk.BulkWriteResult;
+import lombok.Getter;
+import lombok.Setter;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+//bulkOps由mock记录,matchedCount模拟数据库里版本是否匹配
+public class MongoPersistEntityTest {
+    private static final String COLLECTION_NAME = "persist_test_counter";
+
+    private MongoTemplate mongoTemplate;
+    private BulkOperations bulkOps;
+    private MongoPersistEntity entity;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.bulkOps = mock(BulkOperations.class);
+
+        this.mongoTemplate = mock(MongoTemplate.class);
+        when(this.mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), any(Class.class), anyString())).thenReturn(this.bulkOps);
+
+        this.entity = MongoPersistEntity.of(this.mongoTemplate, new ArrayList<>());
+    }
+
+    @Test
+    public void bulkSaveBumpsVersion() {
+        Counter saved = Counter.of(BigInteger.ONE, 3L, 10L);
+        Counter created = Counter.of(null, null, 1L);
+        this.mockMatchedCount(1);
+
+        this.entity.persist(saveMap(saved, created));
+
+        assertEquals(4L, saved.getV());
+        assertEquals(0L, created.getV());
+        assertNotNull(created.getId());
+
+        ArgumentCaptor<Query> captor = ArgumentCaptor.forClass(Query.class);
+        verify(this.bulkOps).replaceOne(captor.capture(), eq(saved));
+        assertEquals(3L, captor.getValue().getQueryObject().get("v"));
+        verify(this.bulkOps).insert(created);
+    }
+
+    @Test
+    public void bulkSaveConflictRestoresModels() {
+        Counter saved = Counter.of(BigInteger.ONE, 3L, 10L);
+        Counter created = Counter.of(null, null, 1L);
+        this.mockMatchedCount(0);
+
+        assertThrows(OptimisticLockingFailureException.class, () -> this.entity.persist(saveMap(saved, created)));
+
+        //调用方重新读取或重试时模型还是原来的状态
+        assertEquals(3L, saved.getV());
+        assertNull(created.getV());
+        assertNull(created.getId());
+    }
+
+    @Test
+    public void bulkIncBumpsVersion() {
+        Counter keyData = Counter.of(null, null, 0L);
+        MongoPersistEntity.IncEntity inc = MongoPersistEntity.IncEntity.of(keyData, Map.of("name", "a"), Map.of("total", 5L), false);
+        inc.getAddToSetMap().put("months", "2024-01");
+        this.mockMatchedCount(1);
+
+        this.entity.persist(incMap(inc));
+
+        ArgumentCaptor<Update> captor = ArgumentCaptor.forClass(Update.class);
+        verify(this.bulkOps).updateOne(any(Query.class), captor.capture());
+        Document incObject = (Document) captor.getValue().getUpdateObject().get("$inc");
+        assertEquals(5L, incObject.get("total"));
+        //基于旧版本的save会产生乐观锁冲突,而不是覆盖掉$inc的结果
+        assertEquals(1, incObject.get("__v"));
+        assertNotNull(captor.getValue().getUpdateObject().get("$addToSet"));
+    }
+
+    @Test
+    public void bulkIncMissingRecordFails() {
+        Counter keyData = Counter.of(null, null, 0L);
+        MongoPersistEntity.IncEntity update = MongoPersistEntity.IncEntity.of(keyData, Map.of("name", "a"), Map.of("total", 5L), false);
+        MongoPersistEntity.IncEntity upsert = MongoPersistEntity.IncEntity.of(keyData, Map.of("name", "b"), Map.of("total", 1L), true);
+        this.mockMatchedCount(0);
+
+        assertThrows(BizException.class, () -> this.entity.persist(incMap(update, upsert)));
+        verify(this.bulkOps).upsert(any(Query.class), any(Update.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void insertOnlyFailureRemovesGeneratedIdsOnly() {
+        Counter assigned = Counter.of(BigInteger.valueOf(0x10), null, 1L);
+        Counter generated = Counter.of(null, null, 2L);
+        when(this.mongoTemplate.insert(any(Collection.class), anyString())).thenThrow(new DuplicateKeyException("duplicate"));
+
+        MongoPersistEntity.PersistMap persistMap = new MongoPersistEntity.PersistMap();
+        persistMap.getInsertMap().add(MongoPersistEntity.ModelClazzCollectionName.of(Counter.class, COLLECTION_NAME), assigned);
+        persistMap.getInsertMap().add(MongoPersistEntity.ModelClazzCollectionName.of(Counter.class, COLLECTION_NAME), generated);
+
+        AtomicReference<BigInteger> generatedId = new AtomicReference<>();
+        when(this.mongoTemplate.remove(any(Query.class), anyString())).thenAnswer(invocation -> {
+            generatedId.set(generated.getId());
+            return null;
+        });
+
+        assertThrows(DuplicateKeyException.class, () -> this.entity.persistInsertOnly(persistMap));
+
+        ArgumentCaptor<Query> captor = ArgumentCaptor.forClass(Query.class);
+        verify(this.mongoTemplate).remove(captor.capture(), eq(COLLECTION_NAME));
+        Document idQuery = (Document) captor.getValue().getQueryObject().get("_id");
+        //调用方指定的id可能属于已有的记录,不能删除
+        assertEquals(Collections.singletonList(new ObjectId(generatedId.get().toString(16))), idQuery.get("$in"));
+
+        assertEquals(BigInteger.valueOf(0x10), assigned.getId());
+        assertNull(generated.getId());
+    }
+
+    private void mockMatchedCount(int matchedCount) {
+        BulkWriteResult result = mock(BulkWriteResult.class);
+        when(result.getMatchedCount()).thenReturn(matchedCount);
+        when(this.bulkOps.execute()).thenReturn(result);
+    }
+
+    private static MongoPersistEntity.PersistMap saveMap(BaseModel... datas) {
+        MongoPersistEntity.PersistMap persistMap = new MongoPersistEntity.PersistMap();
+        for (BaseModel data : datas) {
+            persistMap.getSaveMap().add(MongoPersistEntity.ModelClazzCollectionName.of(Counter.class, COLLECTION_NAME), data);
+        }
+
+        return persistMap;
+    }
+
+    private static MongoPersistEntity.PersistMap incMap(MongoPersistEntity.IncEntity... datas) {
+        MongoPersistEntity.PersistMap persistMap = new MongoPersistEntity.PersistMap();
+        for (MongoPersistEntity.IncEntity data : datas) {
+            persistMap.getIncMap().add(MongoPersistEntity.ModelClazzCollectionName.of(Counter.class, COLLECTION_NAME), data);
+        }
+
+        return persistMap;
+    }
+
+    @Setter
+    @Getter
+    @org.springframework.data.mongodb.core.mapping.Document(COLLECTION_NAME)
+    public static class Counter extends BaseModel {
+        private Long total;
+
+        public static Counter of(BigInteger id, Long v, Long total) {
+            Counter data = new Counter();
+
+            data.setId(id);
+            data.setV(v);
+            data.setTotal(total);
+
+            return data;
+        }
+    }
+}
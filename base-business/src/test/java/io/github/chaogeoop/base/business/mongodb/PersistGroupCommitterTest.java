@@ -0,0 +1,203 @@
+package io.github.chaogeoop.base.business.mongodb;
+
+import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+//持久化由mock的PersistProvider模拟,窗口设得很长,由shutdown触发最后一次flush
+public class PersistGroupCommitterTest {
+    private PersistProvider persistProvider;
+
+    @BeforeEach
+    public void setUp() {
+        this.persistProvider = mock(PersistProvider.class);
+    }
+
+    @Test
+    public void failedGroupRetriesWithOriginalModelState() throws Exception {
+        MongoPersistEntityTest.Counter good = MongoPersistEntityTest.Counter.of(BigInteger.ONE, 1L, 1L);
+        MongoPersistEntityTest.Counter bad = MongoPersistEntityTest.Counter.of(BigInteger.TWO, 1L, 1L);
+        MongoPersistEntityTest.Counter created = MongoPersistEntityTest.Counter.of(null, null, 1L);
+
+        List<Long> retryVersions = new ArrayList<>();
+        when(this.persistProvider.persistWithoutMessages(anyList(), any())).thenAnswer(invocation -> {
+            List<MongoPersistEntity.PersistEntity> list = invocation.getArgument(0);
+            Set<BaseModel> models = giveModels(list);
+
+            //合并持久化时前面的集合已经改了版本和id,之后失败整体回滚
+            if (list.size() > 1) {
+                good.setV(2L);
+                created.setId(BigInteger.TEN);
+                created.setV(0L);
+                throw new OptimisticLockingFailureException("group");
+            }
+
+            if (models.contains(bad)) {
+                throw new OptimisticLockingFailureException("bad");
+            }
+
+            retryVersions.add(good.getV());
+            assertNull(created.getId());
+            return persistMapOf(list);
+        });
+
+        PersistGroupCommitter committer = new PersistGroupCommitter(this.persistProvider, 10, Duration.ofHours(1));
+        CompletableFuture<Void> goodFuture = committer.submit(Collections.singletonList(saveEntity(good, created)));
+        CompletableFuture<Void> badFuture = committer.submit(Collections.singletonList(saveEntity(bad)));
+        committer.shutdown();
+
+        assertNull(goodFuture.get(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(1L), retryVersions);
+
+        ExecutionException error = assertThrows(ExecutionException.class, () -> badFuture.get(1, TimeUnit.SECONDS));
+        assertInstanceOf(OptimisticLockingFailureException.class, error.getCause());
+        assertEquals(1L, bad.getV());
+    }
+
+    @Test
+    public void submitAfterShutdownIsRejected() {
+        PersistGroupCommitter committer = new PersistGroupCommitter(this.persistProvider, 10, Duration.ofHours(1));
+        committer.shutdown();
+
+        CompletableFuture<Void> future = committer.submit(Collections.singletonList(saveEntity(MongoPersistEntityTest.Counter.of(BigInteger.ONE, 1L, 1L))));
+
+        ExecutionException error = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertInstanceOf(BizException.class, error.getCause());
+        verify(this.persistProvider, never()).persistWithoutMessages(anyList(), any());
+    }
+
+    @Test
+    public void fullQueueIsRejected() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(this.persistProvider.persistWithoutMessages(anyList(), any())).thenAnswer(invocation -> {
+            entered.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return persistMapOf(invocation.getArgument(0));
+        });
+
+        //第一个请求占住flush线程,之后的请求只能排队
+        PersistGroupCommitter committer = new PersistGroupCommitter(this.persistProvider, 1, Duration.ofHours(1));
+        CompletableFuture<Void> first = committer.submit(Collections.singletonList(saveEntity(MongoPersistEntityTest.Counter.of(BigInteger.ZERO, 1L, 1L))));
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 1; i <= 101; i++) {
+            futures.add(committer.submit(Collections.singletonList(saveEntity(MongoPersistEntityTest.Counter.of(BigInteger.valueOf(i), 1L, 1L)))));
+        }
+
+        CompletableFuture<Void> rejected = futures.get(futures.size() - 1);
+        ExecutionException error = assertThrows(ExecutionException.class, () -> rejected.get(1, TimeUnit.SECONDS));
+        assertInstanceOf(BizException.class, error.getCause());
+
+        release.countDown();
+        committer.shutdown();
+
+        assertNull(first.get(1, TimeUnit.SECONDS));
+        for (CompletableFuture<Void> future : futures.subList(0, futures.size() - 1)) {
+            assertNull(future.get(1, TimeUnit.SECONDS));
+        }
+    }
+
+    //handler追加的消息(如es同步)不属于任何调用方,也要在合并持久化后发送
+    @Test
+    public void handlerMessagesAreSent() throws Exception {
+        List<String> sent = new ArrayList<>();
+        when(this.persistProvider.persistWithoutMessages(anyList(), any())).thenAnswer(invocation -> {
+            MongoPersistEntity.PersistMap persistMap = persistMapOf(invocation.getArgument(0));
+            persistMap.getMessages().add(() -> sent.add("handler"));
+
+            return persistMap;
+        });
+
+        MongoPersistEntity.PersistEntity first = saveEntity(MongoPersistEntityTest.Counter.of(BigInteger.ONE, 1L, 1L));
+        first.getMessages().add(() -> sent.add("first"));
+        MongoPersistEntity.PersistEntity second = saveEntity(MongoPersistEntityTest.Counter.of(BigInteger.TWO, 1L, 1L));
+        second.getMessages().add(() -> sent.add("second"));
+
+        PersistGroupCommitter committer = new PersistGroupCommitter(this.persistProvider, 10, Duration.ofHours(1));
+        CompletableFuture<Void> firstFuture = committer.submit(Collections.singletonList(first));
+        CompletableFuture<Void> secondFuture = committer.submit(Collections.singletonList(second));
+        committer.shutdown();
+
+        assertNull(firstFuture.get(1, TimeUnit.SECONDS));
+        assertNull(secondFuture.get(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "second", "handler"), sent);
+        verify(this.persistProvider, times(1)).persistWithoutMessages(anyList(), any());
+    }
+
+    @Test
+    public void failedHandlerMessageFailsWholeGroup() {
+        when(this.persistProvider.persistWithoutMessages(anyList(), any())).thenAnswer(invocation -> {
+            MongoPersistEntity.PersistMap persistMap = persistMapOf(invocation.getArgument(0));
+            persistMap.getMessages().add(() -> {
+                throw new BizException("send fail");
+            });
+
+            return persistMap;
+        });
+
+        PersistGroupCommitter committer = new PersistGroupCommitter(this.persistProvider, 10, Duration.ofHours(1));
+        List<CompletableFuture<Void>> futures = Arrays.asList(
+                committer.submit(Collections.singletonList(saveEntity(MongoPersistEntityTest.Counter.of(BigInteger.ONE, 1L, 1L)))),
+                committer.submit(Collections.singletonList(saveEntity(MongoPersistEntityTest.Counter.of(BigInteger.TWO, 1L, 1L))))
+        );
+        committer.shutdown();
+
+        for (CompletableFuture<Void> future : futures) {
+            ExecutionException error = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+            assertInstanceOf(BizException.class, error.getCause());
+        }
+    }
+
+    private static MongoPersistEntity.PersistMap persistMapOf(List<MongoPersistEntity.PersistEntity> list) {
+        MongoPersistEntity.PersistMap persistMap = new MongoPersistEntity.PersistMap();
+        for (MongoPersistEntity.PersistEntity entity : list) {
+            persistMap.getMessages().addAll(entity.getMessages());
+        }
+
+        return persistMap;
+    }
+
+    private static MongoPersistEntity.PersistEntity saveEntity(MongoPersistEntityTest.Counter... datas) {
+        MongoPersistEntity.PersistEntity entity = new MongoPersistEntity.PersistEntity();
+        for (MongoPersistEntityTest.Counter data : datas) {
+            if (data.getV() == null) {
+                entity.getDatabase().insert(data);
+            } else {
+                entity.getDatabase().save(data);
+            }
+        }
+
+        return entity;
+    }
+
+    private static Set<BaseModel> giveModels(List<MongoPersistEntity.PersistEntity> list) {
+        Set<BaseModel> models = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (MongoPersistEntity.PersistEntity entity : list) {
+            for (Set<BaseModel> datas : entity.getDatabase().getSaveMap().values()) {
+                models.addAll(datas);
+            }
+            for (Set<BaseModel> datas : entity.getDatabase().getInsertMap().values()) {
+                models.addAll(datas);
+            }
+        }
+
+        return models;
+    }
+}
@@ -0,0 +1,95 @@
+package io.github.chaogeoop.base.business.mongodb;
+
+import io.github.chaogeoop.base.business.mongodb.basic.BaseModel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.MongoTransactionManager;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class PersistProviderTest {
+    private static final MongoPersistEntity.ModelClazzCollectionName KEY = MongoPersistEntity.ModelClazzCollectionName.of(
+            MongoPersistEntityTest.Counter.class, "persist_test_counter"
+    );
+
+    private PersistProvider persistProvider;
+
+    @BeforeEach
+    public void setUp() {
+        this.persistProvider = new PersistProvider(mock(MongoTemplate.class), mock(MongoTransactionManager.class), null);
+    }
+
+    @Test
+    public void insertWithGeneratedIdsSkipsTransaction() {
+        assertEquals(PersistProvider.PersistPathEnum.SINGLE_WRITE, this.classify(insertMap(newCounter(null))));
+        assertEquals(PersistProvider.PersistPathEnum.RETRYABLE_INSERT, this.classify(insertMap(newCounter(null), newCounter(null))));
+
+        MongoPersistEntity.PersistMap withCache = insertMap(newCounter(null), newCounter(null));
+        withCache.getCacheList().add(new NoopCache());
+        assertEquals(PersistProvider.PersistPathEnum.RETRYABLE_INSERT, this.classify(withCache));
+    }
+
+    //调用方指定的id失败时不能按id删除补偿
+    @Test
+    public void insertWithAssignedIdsNeedsTransaction() {
+        assertEquals(PersistProvider.PersistPathEnum.SINGLE_WRITE, this.classify(insertMap(newCounter(BigInteger.ONE))));
+        assertEquals(PersistProvider.PersistPathEnum.TRANSACTION, this.classify(insertMap(newCounter(BigInteger.ONE), newCounter(null))));
+
+        MongoPersistEntity.PersistMap withCache = insertMap(newCounter(BigInteger.ONE));
+        withCache.getCacheList().add(new NoopCache());
+        assertEquals(PersistProvider.PersistPathEnum.TRANSACTION, this.classify(withCache));
+    }
+
+    @Test
+    public void mixedWritesNeedTransaction() {
+        MongoPersistEntity.PersistMap persistMap = insertMap(newCounter(null));
+        persistMap.getSaveMap().add(KEY, newCounter(BigInteger.ONE));
+
+        assertEquals(PersistProvider.PersistPathEnum.TRANSACTION, this.classify(persistMap));
+        assertEquals(PersistProvider.PersistPathEnum.NO_DATABASE, this.classify(new MongoPersistEntity.PersistMap()));
+    }
+
+    @Test
+    public void writingHandlerNeedsTransaction() {
+        MongoPersistEntity.AfterDbPersistInterface handler = persistMap -> {
+        };
+
+        assertEquals(
+                PersistProvider.PersistPathEnum.TRANSACTION,
+                this.persistProvider.classify(insertMap(newCounter(null)), Collections.singletonList(handler))
+        );
+    }
+
+    private PersistProvider.PersistPathEnum classify(MongoPersistEntity.PersistMap persistMap) {
+        return this.persistProvider.classify(persistMap, new ArrayList<>());
+    }
+
+    private static MongoPersistEntity.PersistMap insertMap(BaseModel... datas) {
+        MongoPersistEntity.PersistMap persistMap = new MongoPersistEntity.PersistMap();
+        for (BaseModel data : datas) {
+            persistMap.getInsertMap().add(KEY, data);
+        }
+
+        return persistMap;
+    }
+
+    private static MongoPersistEntityTest.Counter newCounter(BigInteger id) {
+        return MongoPersistEntityTest.Counter.of(id, null, 1L);
+    }
+
+    private static class NoopCache implements MongoPersistEntity.CacheInterface {
+        @Override
+        public void persist() {
+        }
+
+        @Override
+        public void rollback() {
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.github.chaogeoop.base.business.redis;
+
+import io.github.chaogeoop.base.business.common.errors.BizException;
+import io.github.chaogeoop.base.business.redis.keyregisters.TestKeyRegister;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DistributedKeyProviderTest {
+    private static final DistributedKeyProvider PROVIDER = new DistributedKeyProvider(
+            "io.github.chaogeoop.base.business.redis.keyregisters", "test"
+    );
+
+    @Test
+    public void cachedPrefixMatchesFormattedKey() {
+        KeyEntity<TestKeyRegister.TestDistributedKey> keyEntity = KeyEntity.of(TestKeyRegister.USER_INFO_TYPE, "42");
+
+        assertEquals("test:user-info:42", PROVIDER.getKey(keyEntity));
+        assertArrayEquals("test:user-info:42".getBytes(StandardCharsets.UTF_8), PROVIDER.getKeyBytes(keyEntity));
+
+        //值相同的另一个实例也能找到注册的前缀
+        assertEquals("test:user-info:42", PROVIDER.getKey(KeyEntity.of(TestKeyRegister.TestDistributedKey.of("user", "info"), "42")));
+    }
+
+    @Test
+    public void registeredTypeCantBeModified() {
+        assertThrows(BizException.class, () -> TestKeyRegister.USER_INFO_TYPE.setSubType("other"));
+        assertEquals("info", TestKeyRegister.USER_INFO_TYPE.getSubType());
+    }
+
+    @Test
+    public void unregisteredTypeIsRejected() {
+        KeyEntity<TestKeyRegister.TestDistributedKey> keyEntity = KeyEntity.of(TestKeyRegister.TestDistributedKey.of("user", "none"), "42");
+
+        assertThrows(BizException.class, () -> PROVIDER.getKey(keyEntity));
+    }
+
+    //缓存前缀拼出的key与原来每次String.format拼接的完全一致
+    @Test
+    public void keyMatchesFormatForRegisteredTypes() {
+        for (TestKeyRegister.TestDistributedKey type : new TestKeyRegister().register()) {
+            for (String id : Arrays.asList("", "42", "a:b", "%s", "中文")) {
+                String expected = String.format("%s:%s-%s:%s", PROVIDER.getScope(), type.getType(), type.getSubType(), id);
+                KeyEntity<TestKeyRegister.TestDistributedKey> keyEntity = KeyEntity.of(type, id);
+
+                assertEquals(expected, PROVIDER.getKey(keyEntity));
+                assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), PROVIDER.getKeyBytes(keyEntity));
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package io.github.chaogeoop.base.business.redis;
+
+import io.github.chaogeoop.base.business.common.helpers.JsonHelper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+//用mock的template和container模拟redis的pub/sub,两个节点共用一个频道
+public class NearCacheInvalidationBusTest {
+    private static final TestKeyType CACHED_TYPE = TestKeyType.of("user", "info");
+    private static final TestKeyType COUNTER_TYPE = TestKeyType.of("user", "counter");
+
+    private final List<MessageListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<NearCacheInvalidationBus.InvalidateMessage> sentMessages = new CopyOnWriteArrayList<>();
+
+    private RedisTemplate<String, Object> template;
+    private RedisMessageListenerContainer container;
+    private DistributedKeyProvider distributedKeyProvider;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.publish(any(byte[].class), any(byte[].class))).thenAnswer(invocation -> {
+            byte[] channel = invocation.getArgument(0);
+            byte[] body = invocation.getArgument(1);
+
+            this.sentMessages.add(JsonHelper.readValue(new String(body, StandardCharsets.UTF_8), NearCacheInvalidationBus.InvalidateMessage.class));
+            for (MessageListener listener : this.listeners) {
+                listener.onMessage(new DefaultMessage(channel, body), null);
+            }
+
+            return (long) this.listeners.size();
+        });
+
+        this.template = mock(RedisTemplate.class);
+        when(this.template.execute(any(RedisCallback.class))).thenAnswer(invocation -> {
+            RedisCallback<?> callback = invocation.getArgument(0);
+            return callback.doInRedis(connection);
+        });
+
+        this.container = mock(RedisMessageListenerContainer.class);
+        doAnswer(invocation -> this.listeners.add(invocation.getArgument(0)))
+                .when(this.container).addMessageListener(any(MessageListener.class), any(Topic.class));
+
+        this.distributedKeyProvider = mock(DistributedKeyProvider.class);
+        when(this.distributedKeyProvider.getScope()).thenReturn("test");
+    }
+
+    @Test
+    public void onlyNearCachedTypesAreSupported() {
+        NearCache nearCache = newNearCache();
+        NearCacheInvalidationBus bus = this.newBus(nearCache);
+
+        assertTrue(bus.support(CACHED_TYPE));
+        assertFalse(bus.support(COUNTER_TYPE));
+
+        NearCacheInvalidationBus broadcastOnly = new NearCacheInvalidationBus(
+                this.template, this.distributedKeyProvider, null, Collections.singleton(CACHED_TYPE), this.container, Duration.ofHours(1)
+        );
+        assertTrue(broadcastOnly.support(CACHED_TYPE));
+        assertFalse(broadcastOnly.support(COUNTER_TYPE));
+    }
+
+    @Test
+    public void publishInvalidatesOtherNodes() {
+        NearCache writerCache = newNearCache();
+        NearCache readerCache = newNearCache();
+        NearCacheInvalidationBus writer = this.newBus(writerCache);
+        this.newBus(readerCache);
+
+        writerCache.put(CACHED_TYPE, "k1", "writer", writerCache.giveVersion("k1"));
+        readerCache.put(CACHED_TYPE, "k1", "reader", readerCache.giveVersion("k1"));
+        readerCache.put(CACHED_TYPE, "k2", "reader", readerCache.giveVersion("k2"));
+
+        writer.publish("k1");
+        writer.flush();
+
+        assertNull(readerCache.getIfPresent(CACHED_TYPE, "k1"));
+        assertEquals("reader", readerCache.getIfPresent(CACHED_TYPE, "k2"));
+        //自己发出的消息不处理
+        assertEquals("writer", writerCache.getIfPresent(CACHED_TYPE, "k1"));
+
+        assertEquals(1, this.sentMessages.size());
+        assertEquals(Collections.singletonList("k1"), this.sentMessages.get(0).getKeys());
+    }
+
+    @Test
+    public void overflowFallsBackToInvalidateAll() {
+        NearCache writerCache = newNearCache();
+        NearCache readerCache = newNearCache();
+        NearCacheInvalidationBus writer = this.newBus(writerCache);
+        this.newBus(readerCache);
+
+        readerCache.put(CACHED_TYPE, "never-published", "reader", readerCache.giveVersion("never-published"));
+
+        //持有bus的锁让后台flush等待,待发送的key才会堆积到上限
+        synchronized (writer) {
+            for (int i = 0; i < 20000; i++) {
+                writer.publish(String.format("key-%s", i));
+            }
+        }
+        writer.flush();
+
+        assertNull(readerCache.getIfPresent(CACHED_TYPE, "never-published"));
+
+        assertEquals(1, this.sentMessages.size());
+        assertTrue(this.sentMessages.get(0).isAll());
+        assertTrue(this.sentMessages.get(0).getKeys().isEmpty());
+    }
+
+    private NearCacheInvalidationBus newBus(NearCache nearCache) {
+        return new NearCacheInvalidationBus(this.template, this.distributedKeyProvider, nearCache, this.container, Duration.ofHours(1));
+    }
+
+    private static NearCache newNearCache() {
+        Map<KeyType, NearCache.Config> configMap = new HashMap<>();
+        configMap.put(CACHED_TYPE, NearCache.Config.of(Duration.ofMinutes(1), 1000));
+
+        return new NearCache(configMap);
+    }
+
+    private static class TestKeyType extends KeyType {
+        private static TestKeyType of(String type, String subType) {
+            TestKeyType data = new TestKeyType();
+
+            data.setType(type);
+            data.setSubType(subType);
+
+            return data;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package io.github.chaogeoop.base.business.redis.codec;
+
+import io.github.chaogeoop.base.business.common.helpers.JsonHelper;
+import lombok.Getter;
+import lombok.Setter;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RedisValueCodecTest {
+    private static final List<String> TEXTS = Arrays.asList(
+            "", "hello", "123", "1.10", "true", "null", "\"quoted\"", "中文",
+            "{\"a\":1,\"b\":[1,2],\"c\":\"x\"}", "[1,2,3]", " {\"a\":1}", "{\"a\": 1}", "{\"a\":1.10}", "{broken"
+    );
+
+    @Test
+    public void smileKeepsTextUnchanged() {
+        SmileRedisValueCodec codec = new SmileRedisValueCodec();
+
+        for (String text : TEXTS) {
+            assertEquals(text, codec.decode(codec.encode(text), String.class), text);
+        }
+    }
+
+    @Test
+    public void compressedSmileKeepsTextUnchanged() {
+        CompressedRedisValueCodec codec = new CompressedRedisValueCodec(new SmileRedisValueCodec(), 16);
+
+        for (String text : TEXTS) {
+            assertEquals(text, codec.decode(codec.encode(text), String.class), text);
+        }
+
+        String large = JsonHelper.writeValueAsString(newItems(200));
+        assertEquals(large, codec.decode(codec.encode(large), String.class));
+    }
+
+    @Test
+    public void smileRoundTripsObjects() {
+        SmileRedisValueCodec codec = new SmileRedisValueCodec();
+        Item item = Item.of(7L, "name", Arrays.asList("a", "b"));
+
+        Item fromObject = codec.decode(codec.encode(item), Item.class);
+        assertEquals(item.getId(), fromObject.getId());
+        assertEquals(item.getName(), fromObject.getName());
+        assertEquals(item.getTags(), fromObject.getTags());
+
+        //缓存方法写入的是json文本
+        Item fromJson = codec.decode(codec.encode(JsonHelper.writeValueAsString(item)), Item.class);
+        assertEquals(item.getId(), fromJson.getId());
+        assertEquals(item.getTags(), fromJson.getTags());
+
+        //不能原样还原而按文本保存的json也能读成对象
+        Item fromText = codec.decode(codec.encode("{\"id\": 7, \"name\": \"name\"}"), Item.class);
+        assertEquals(7L, fromText.getId());
+    }
+
+    //smile按共享的字段名编码,重复结构的列表比json文本小,且能原样还原
+    @Test
+    public void smileIsSmallerThanJson() {
+        RedisValueCodec json = new JsonRedisValueCodec();
+        RedisValueCodec smile = new SmileRedisValueCodec();
+        String payload = JsonHelper.writeValueAsString(newItems(50));
+
+        int jsonSize = json.encode(payload).length;
+        int smileSize = smile.encode(payload).length;
+        assertEquals(payload.getBytes(StandardCharsets.UTF_8).length, jsonSize);
+        assertTrue(smileSize < jsonSize, String.format("smile: %s, json: %s", smileSize, jsonSize));
+
+        assertEquals(JsonHelper.readValue(payload, List.class), smile.decode(smile.encode(payload), List.class));
+    }
+
+    private static List<Item> newItems(int count) {
+        List<Item> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(Item.of((long) i, String.format("item-%s", i), Arrays.asList("tag-a", "tag-b", "tag-c")));
+        }
+
+        return list;
+    }
+
+    @Setter
+    @Getter
+    public static class Item {
+        private Long id;
+
+        private String name;
+
+        private List<String> tags;
+
+        public static Item of(Long id, String name, List<String> tags) {
+            Item data = new Item();
+
+            data.setId(id);
+            data.setName(name);
+            data.setTags(tags);
+
+            return data;
+        }
+    }
+}
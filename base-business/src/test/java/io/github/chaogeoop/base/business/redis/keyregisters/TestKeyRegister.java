@@ -0,0 +1,31 @@
+package io.github.chaogeoop.base.business.redis.keyregisters;
+
+import io.github.chaogeoop.base.business.redis.IKeyRegister;
+import io.github.chaogeoop.base.business.redis.KeyType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestKeyRegister implements IKeyRegister<TestKeyRegister.TestDistributedKey> {
+    public static TestDistributedKey USER_INFO_TYPE = TestDistributedKey.of("user", "info");
+
+    @Override
+    public List<TestDistributedKey> register() {
+        List<TestDistributedKey> list = new ArrayList<>();
+
+        list.add(USER_INFO_TYPE);
+
+        return list;
+    }
+
+    public static class TestDistributedKey extends KeyType {
+        public static TestDistributedKey of(String type, String subType) {
+            TestDistributedKey data = new TestDistributedKey();
+
+            data.setType(type);
+            data.setSubType(subType);
+
+            return data;
+        }
+    }
+}
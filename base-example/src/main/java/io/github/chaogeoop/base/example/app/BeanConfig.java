@@ -63,7 +63,10 @@ public class BeanConfig {
     @Primary
     @Bean()
     public PersistProvider persistProvider(EsProvider esProvider) {
-        return new PersistProvider(this.mongoTemplate, this.mongoTransactionManager, esProvider);
+        PersistProvider persistProvider = new PersistProvider(this.mongoTemplate, this.mongoTransactionManager, esProvider);
+        persistProvider.enableAsync(100, Duration.ofMillis(5));
+
+        return persistProvider;
     }
 
     @Primary
@@ -1,5 +1,6 @@
 package io.github.chaogeoop.base.example.app;
 
+import io.github.chaogeoop.base.business.mongodb.DirtyTrackingCallback;
 import com.mongodb.ReadPreference;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -57,6 +58,11 @@ public class MongoMainConfiguration {
         return new MongoTransactionManager(dbFactory());
     }
 
+    @Bean
+    public DirtyTrackingCallback dirtyTrackingCallback() {
+        return new DirtyTrackingCallback();
+    }
+
     @Bean("slaverMongoMappingContext")
     public MongoMappingContext slaverMongoMappingContext() {
         MongoMappingContext mappingContext = new MongoMappingContext();
@@ -20,6 +20,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/commonCount")
@@ -34,7 +35,7 @@ public class CommonCountController {
     private StrictRedisProvider strictRedisProvider;
 
     @PostMapping("/upload")
-    public HttpResult<Boolean> upload(@RequestBody BookInput input) {
+    public CompletableFuture<HttpResult<Boolean>> upload(@RequestBody BookInput input) {
         Set<CommonCountProvider.CountBiz> countBizList = CollectionHelper.map(input.getBookIds(), o -> getBookFavoriteBiz(o, input.getAction()));
 
         Random rand = new Random();
@@ -60,9 +61,7 @@ public class CommonCountController {
 
         MongoPersistEntity.PersistEntity persistEntity = this.commonCountProvider.insertPersistHistory(bizDateIncMapList);
 
-        this.persistProvider.persist(Lists.newArrayList(persistEntity));
-
-        return HttpResult.of(true);
+        return this.persistProvider.persistAsync(Lists.newArrayList(persistEntity)).thenApply(o -> HttpResult.of(true));
     }
 
     @PostMapping("/getTotalMap")